@@ -1,6 +1,7 @@
 package stork.core;
 
 import java.io.*;
+import java.util.*;
 
 import stork.ad.*;
 import stork.feather.*;
@@ -33,11 +34,48 @@ public class Config {
   public URI connect = URI.create("tcp://localhost:57024");
   public URI[] listen;
   public URI web_service_url;
+  /** Where to serve metrics, or null to not serve them. */
+  public URI metrics_url;
+  /** Whether to label transfer metrics with endpoint hostnames. */
+  public boolean metrics_host_labels = false;
 
   public boolean registration = true;
 
   public double request_timeout = 5.0;
 
+  public int dispatcher_threads = 0;
+  public int inline_continuation_depth = 0;
+  public boolean slice_leak_detection = false;
+  public long pipe_window_bytes = 1048576;
+  public int pipe_window_slices = 16;
+  public long local_mmap_threshold = 67108864;
+  public long local_max_chunk_size = 4194304;
+
+  /** Most bytes all transfers may buffer at once, or zero for no limit. */
+  public long memory_budget = 0;
+
+  /** Most bytes a job may stage in memory and on disk per stream. */
+  public long max_stage_memory = 67108864;
+  public long max_stage_disk = 1073741824;
+  /** Directory for staged data spilled to disk, or null for the default. */
+  public String stage_dir;
+
+  /** Server-wide bandwidth limit in bytes per second, or zero. */
+  public long max_bandwidth = 0;
+  /** Bandwidth limits for endpoint hosts in bytes per second. */
+  public Map<String,Long> host_bandwidth;
+
+  /** Default log level, and levels for particular packages or classes. */
+  public String log_level;
+  public Map<String,String> log_levels;
+  /** Log messages to buffer for writing in the background, or zero. */
+  public int log_buffer = 8192;
+
+  /** Profiling events to keep in memory, or zero to not record them. */
+  public int event_buffer = 0;
+  /** Shortest durations in nanoseconds of event types worth keeping. */
+  public Map<String,Long> event_thresholds;
+
   public String email = "StorkCloud <noreply@storkcloud.org>";
   public String smtp_server = "localhost";
 
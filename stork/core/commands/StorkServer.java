@@ -7,6 +7,7 @@ import stork.core.*;
 import stork.core.server.*;
 import stork.core.net.*;
 import stork.feather.*;
+import stork.feather.util.*;
 import stork.util.*;
 import stork.scheduler.*;
 
@@ -63,5 +64,11 @@ public class StorkServer extends Command {
       else
         HTTPServer.createStaticServer(web_url, dir);
     }
+
+    // Initialize metrics for monitoring. They aren't authenticated, so they
+    // are only served where explicitly configured.
+    URI metrics_url = Config.global.metrics_url;
+    if (metrics_url != null)
+      HTTPServer.createMetricsServer(metrics_url, Metrics.global());
   }
 }
@@ -4,6 +4,8 @@ import java.util.*;
 
 import stork.core.server.*;
 import stork.core.*;
+import stork.feather.errors.*;
+import stork.feather.util.*;
 
 /** Send information about the server. */
 public class InfoHandler extends Handler<InfoRequest> {
@@ -18,6 +20,11 @@ public class InfoHandler extends Handler<InfoRequest> {
     req.ring(new Object() {
       String version = stork.core.Main.version();
       Set<String> commands = req.server.handlers.keySet();
+      Object memory = new Object() {
+        long limit = MemoryBudget.global().limit();
+        long used = MemoryBudget.global().used();
+        long peak = MemoryBudget.global().peak();
+      };
     });
   }
 
@@ -33,6 +40,26 @@ public class InfoHandler extends Handler<InfoRequest> {
     }
   }
 
+  // Send the critical paths of a job's last traced attempt.
+  void sendTraceInfo(InfoRequest req) {
+    req.assertLoggedIn();
+    Trace trace = req.user().getJob(req.job_id).trace();
+    if (trace == null)
+      throw new RuntimeException("The job has not been traced.");
+    req.ring(trace.toString());
+  }
+
+  // Send the profiling events recorded by the server. These cover every
+  // user's jobs, so only administrators may see them.
+  void sendEventInfo(InfoRequest req) {
+    req.assertLoggedIn();
+    if (!req.server.administrators.contains(req.user().email))
+      throw new PermissionDenied();
+    if (req.server.recording == null)
+      throw new RuntimeException("Events are not being recorded.");
+    req.ring(req.server.recording.toString());
+  }
+
   public void handle(InfoRequest req) {
     if (req.action.equals("module"))
       sendModuleInfo(req);
@@ -40,6 +67,10 @@ public class InfoHandler extends Handler<InfoRequest> {
       sendServerInfo(req);
     else if (req.action.equals("cred"))
       sendCredInfo(req);
+    else if (req.action.equals("trace"))
+      sendTraceInfo(req);
+    else if (req.action.equals("events"))
+      sendEventInfo(req);
     else
       throw new RuntimeException("Invalid action.");
   }
@@ -48,4 +79,5 @@ public class InfoHandler extends Handler<InfoRequest> {
 class InfoRequest extends Request {
   String action = "module";
   String uuid;  // Used for cred info.
+  int job_id;   // Used for trace info.
 }
@@ -5,6 +5,7 @@ import java.util.concurrent.*;
 
 import stork.core.server.*;
 import stork.feather.*;
+import stork.feather.util.*;
 import stork.util.*;
 
 /** A handler for performing listings. */
@@ -34,7 +35,13 @@ public class ListHandler extends Handler<ListRequest> {
       return;
     }
 
-    listing = resource.stat();
+    listing = Metrics.global().distribution("listing_nanoseconds",
+      "scheme", String.valueOf(resource.uri().scheme())
+    ).time(resource.stat());
+    Recording.Event event = Recording.begin("listing");
+    if (event != null)
+      event.set("host", resource.uri().host()).set("path", resource.path).
+        commit(listing);
 
     // Register the ongoing listing.
     aggregator.put(resource, listing);
@@ -1,8 +1,11 @@
 package stork.core.handlers;
 
+import java.util.*;
+
 import stork.ad.*;
 import stork.core.server.*;
 import stork.feather.*;
+import stork.feather.util.*;
 import stork.scheduler.*;
 
 /** Handles scheduling jobs. */
@@ -25,6 +28,14 @@ public class SubmitHandler extends Handler<JobRequest> {
 
 class JobRequest extends Request {
   private JobEndpointRequest src, dest;
+  private List<JobEndpointRequest> replicas;
+
+  // Transfer settings. These are left null if not given, so that the job's
+  // defaults are kept.
+  private Integer segments, concurrency, max_concurrency, aggregate_batch;
+  private Long segment_size, aggregate, bandwidth, stage_memory, stage_disk;
+  private String order, optimizer, checksum;
+  private Boolean verify, trace;
 
   // Hack to get around marshalling limitations.
   private class JobEndpointRequest extends EndpointRequest {
@@ -36,6 +47,15 @@ class JobRequest extends Request {
   public JobRequest validate() {
     src.validateAs("source");
     dest.validateAs("destination");
+    if (replicas != null) for (JobEndpointRequest r : replicas)
+      r.validateAs("replica");
+    if (checksum != null)
+      Digest.create(checksum);  // Throws if unsupported.
+    // Staging buffers are held by the server, so they are capped by it.
+    if (stage_memory != null)
+      stage_memory = Math.min(stage_memory, server.config.max_stage_memory);
+    if (stage_disk != null)
+      stage_disk = Math.min(stage_disk, server.config.max_stage_disk);
     return this;
   }
 
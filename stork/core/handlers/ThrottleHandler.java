@@ -0,0 +1,56 @@
+package stork.core.handlers;
+
+import stork.core.server.*;
+import stork.feather.errors.*;
+import stork.scheduler.*;
+
+/**
+ * Handles changing bandwidth limits. A user may lower the limit of one of
+ * their own jobs. Raising or clearing a job's limit, and changing the limits
+ * of users, hosts or the whole server, may only be done by administrators.
+ * Changes apply to running jobs immediately, except that a limit on a host
+ * which had none only applies to jobs started after it is set.
+ */
+public class ThrottleHandler extends Handler<ThrottleRequest> {
+  public void handle(ThrottleRequest req) {
+    req.assertLoggedIn();
+    req.assertMayChangeState();
+
+    if (req.rate == null)
+      throw new RuntimeException("No rate specified.");
+
+    boolean admin = server.administrators.contains(req.user().email);
+
+    if (req.job_id > 0) {
+      Job job = req.user().getJob(req.job_id);
+      if (!admin && !lowers(job.bandwidth().rate(), req.rate))
+        throw new PermissionDenied();
+      job.bandwidth(req.rate);
+    } else if (!admin) {
+      throw new PermissionDenied();
+    } else if (req.host != null) {
+      server.hostBandwidth(req.host, req.rate);
+    } else if (req.global) {
+      server.bandwidth.rate(req.rate);
+    } else {
+      User user = (req.user == null) ? req.user() : server.findUser(req.user);
+      if (user == null)
+        throw new RuntimeException("No such user: "+req.user);
+      user.bandwidth(req.rate);
+    } req.ring();
+  }
+
+  // Check if a rate is a limit at least as strict as the current one, where
+  // zero means there is no limit.
+  private static boolean lowers(double current, long rate) {
+    return rate > 0 && (current <= 0 || rate <= current);
+  }
+}
+
+class ThrottleRequest extends Request {
+  int job_id;
+  String host;
+  boolean global;
+  String user;
+  Long rate;
+}
@@ -93,9 +93,8 @@ public class HTTPBody extends Resource<HTTPRequest,HTTPBody> {
     }
 
     public Bell drain(Slice slice) {
-      ByteBuf buf = slice.asByteBuf();
-      buf.retain();
-      return session.toNetty(new DefaultHttpContent(buf));
+      // Netty releases the buffer once it has been written.
+      return session.toNetty(new DefaultHttpContent(slice.asByteBuf()));
     }
 
     public void finish(Throwable t) {
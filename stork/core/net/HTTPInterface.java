@@ -124,13 +124,21 @@ public class HTTPInterface extends StorkInterface {
     if (type == null || type.startsWith("application/json")) {
       bell = sink.bell().new As<Ad>() {
         public Ad convert(Slice slice) {
-          return Ad.parse(new ByteBufInputStream(slice.asByteBuf()));
+          try {
+            return Ad.parse(new ByteBufInputStream(slice.asByteBuf()));
+          } finally {
+            slice.release();
+          }
         }
       };
     } else if (type.startsWith("application/x-www-form-urlencoded")) {
       bell = sink.bell().new As<Ad>() {
         public Ad convert(Slice slice) {
-          return queryToAd(slice.asByteBuf().toString(CharsetUtil.UTF_8));
+          try {
+            return queryToAd(slice.asByteBuf().toString(CharsetUtil.UTF_8));
+          } finally {
+            slice.release();
+          }
         }
       };
     } else {
@@ -33,6 +33,8 @@ public abstract class HTTPRequest extends Session<HTTPRequest,HTTPBody> {
   public void translate(ByteBuf buffer) {
     if (tap != null)
       tap.drain(new Slice(buffer));
+    else
+      buffer.release();
   }
 
   public boolean isMultipart() {
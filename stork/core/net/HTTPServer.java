@@ -165,6 +165,23 @@ public class HTTPServer {
     };
   }
 
+  /**
+   * Create a route that will serve {@code metrics} in the Prometheus text
+   * format. Metrics are only read when requested, so scraping is cheap.
+   */
+  public static Route createMetricsServer(URI uri, final Metrics metrics) {
+    Log.info("Serving metrics at "+uri);
+
+    return new Route(uri, "GET") {
+      public void handle(HTTPRequest request) {
+        String text = metrics.write(new StringBuilder(), "stork_").toString();
+        HTTPBody body = request.root();
+        body.contentType = "text/plain; version=0.0.4; charset=UTF-8";
+        Pipes.tapFromString(text).attach(body.sink()).tap().start();
+      }
+    };
+  }
+
   /**
    * Returns the first matched route. This first checks for a route for the
    * given method and path. If a route cannot be found, it checks for a route
@@ -3,6 +3,7 @@ package stork.core.server;
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.logging.Level;
 
 import javax.mail.*;
 import javax.mail.internet.*;
@@ -13,6 +14,7 @@ import stork.core.*;
 import stork.core.handlers.*;
 import stork.cred.*;
 import stork.feather.*;
+import stork.feather.util.*;
 import stork.module.*;
 import stork.scheduler.*;
 import stork.util.*;
@@ -80,6 +82,16 @@ public class Server {
   /** Thread which dumps server state occasionally. */
   private transient DumpStateThread dumpStateThread;
 
+  /** Server-wide bandwidth limit, which every user's limit falls under. */
+  public transient TokenBucket bandwidth = new TokenBucket();
+
+  /** Profiling events, if they are being recorded. */
+  public transient Recording recording;
+
+  /** Bandwidth limits for endpoint hosts, shared by every job using them. */
+  private transient Map<String,TokenBucket> hostBandwidth =
+    new HashMap<String,TokenBucket>();
+
   /** Mapping of handler names to handlers. */
   public transient Map<String, Class<? extends Handler>> handlers =
     new HashMap<String, Class<? extends Handler>>();
@@ -214,13 +226,103 @@ public class Server {
   /** Dump the state of the server to the default save file. */
   public void dumpState() { dumpStateThread.dumpState(); }
 
+  /**
+   * Get the bandwidth limit for an endpoint host. Returns {@code null} if
+   * {@code host} is {@code null} or has no limit, so hosts named by jobs
+   * don't accumulate here.
+   */
+  public synchronized TokenBucket hostBandwidth(String host) {
+    if (host == null)
+      return null;
+    return hostBandwidth.get(host.toLowerCase());
+  }
+
+  /**
+   * Change the bandwidth limit for an endpoint host. Jobs already using the
+   * host see the change immediately. A new limit only applies to jobs started
+   * after it is set.
+   *
+   * @param host the host to limit.
+   * @param rate the limit in bytes per second, or zero to remove it.
+   */
+  public synchronized Server hostBandwidth(String host, long rate) {
+    host = host.toLowerCase();
+    TokenBucket bucket = hostBandwidth.get(host);
+    if (rate <= 0) {
+      if (bucket != null)
+        hostBandwidth.remove(host).rate(0);
+    } else if (bucket == null) {
+      hostBandwidth.put(host, new TokenBucket().rate(rate));
+    } else {
+      bucket.rate(rate);
+    } return this;
+  }
+
+  // Apply the logging settings.
+  private static void configureLogging(Config config) {
+    if (config.log_level != null)
+      Log.level(Level.parse(config.log_level.toUpperCase()));
+    if (config.log_levels != null)
+      for (Map.Entry<String,String> e : config.log_levels.entrySet())
+        Log.level(e.getKey(), Level.parse(e.getValue().toUpperCase()));
+    Log.async(config.log_buffer);
+  }
+
+  // Register gauges for server-wide state, read when they are reported.
+  private static void registerMetrics() {
+    Metrics m = Metrics.global();
+    m.gauge("dispatcher_queue_depth", new Metrics.Gauge() {
+      public double value() { return Bell.dispatcher().queueDepth(); }
+    });
+    m.gauge("dispatcher_delayed_tasks", new Metrics.Gauge() {
+      public double value() { return Bell.dispatcher().delayedTasks(); }
+    });
+    m.gauge("memory_budget_limit_bytes", new Metrics.Gauge() {
+      public double value() { return MemoryBudget.global().limit(); }
+    });
+    m.gauge("memory_budget_used_bytes", new Metrics.Gauge() {
+      public double value() { return MemoryBudget.global().used(); }
+    });
+    m.gauge("memory_budget_peak_bytes", new Metrics.Gauge() {
+      public double value() { return MemoryBudget.global().peak(); }
+    });
+  }
+
+  // Record profiling events in memory, for the info handler to send.
+  private void startRecording(Config config) {
+    recording = new Recording(config.event_buffer);
+    if (config.event_thresholds != null)
+      for (Map.Entry<String,Long> e : config.event_thresholds.entrySet())
+        recording.threshold(e.getKey(), e.getValue());
+    recording.start();
+  }
+
   public Server(Config config) {
+    configureLogging(config);
     Log.info("Loading server...");
     Log.info("Server config: ", config);
 
     if (config.state_file != null)
       loadServerState(config.state_file);
 
+    Bell.dispatcher(
+      new Dispatcher("Bell Dispatcher", config.dispatcher_threads));
+    Bell.inlineDepth(config.inline_continuation_depth);
+    Slice.leakDetection(config.slice_leak_detection);
+    Pipe.defaultWindow(config.pipe_window_bytes, config.pipe_window_slices);
+    LocalResource.mmapThreshold(config.local_mmap_threshold);
+    LocalResource.maxChunkSize(config.local_max_chunk_size);
+    ProxyTransfer.hostLabels(config.metrics_host_labels);
+    MemoryBudget.global().limit(config.memory_budget);
+    bandwidth.rate(config.max_bandwidth);
+    if (config.host_bandwidth != null)
+      for (Map.Entry<String,Long> e : config.host_bandwidth.entrySet())
+        hostBandwidth(e.getKey(), e.getValue());
+    Log.info("Using dispatcher: ", Bell.dispatcher());
+    registerMetrics();
+    if (config.event_buffer > 0)
+      startRecording(config);
+
     handlers.put("cancel", CancelHandler.class);
     handlers.put("cred",   CredHandler.class);
     handlers.put("delete", DeleteHandler.class);
@@ -233,6 +335,7 @@ public class Server {
     handlers.put("q",      QHandler.class);
     handlers.put("status", QHandler.class);
     handlers.put("submit", SubmitHandler.class);
+    handlers.put("throttle", ThrottleHandler.class);
     handlers.put("user",   UserHandler.class);
 
     modules.populate();
@@ -3,11 +3,20 @@ package stork.core.server;
 import java.util.*;
 
 import stork.feather.*;
+import stork.feather.util.*;
 import stork.util.*;
 
 public class SessionCache {
   private Map<Session,Session> map = new HashMap<Session, Session>();
 
+  // Shared by every cache, so they can be reported together.
+  private static final Metrics.Gauge size =
+    Metrics.global().gauge("session_cache_size");
+  private static final Metrics.Counter hits =
+    Metrics.global().counter("session_cache_hits_total");
+  private static final Metrics.Counter misses =
+    Metrics.global().counter("session_cache_misses_total");
+
   public synchronized Resource take(Resource resource) {
     Session session = take(resource.session);
     if (resource.session == session)
@@ -19,9 +28,11 @@ public class SessionCache {
     Session cached = map.get(session);
     if (cached == null || cached.isClosed()) {
       Log.info("Using new session: "+session);
+      misses.increment();
       return session;
     }
-    map.remove(cached);
+    remove(cached);
+    hits.increment();
     Log.info("Reusing existing session: "+session);
     return cached;
   }
@@ -36,11 +47,13 @@ public class SessionCache {
       public void always() { remove(session); }
     });
     map.put(session, session);
+    size.add(1);
     return session;
   }
 
   public synchronized Session remove(Session session) {
-    map.remove(session);
+    if (map.remove(session) != null)
+      size.add(-1);
     return session;
   }
 }
@@ -12,6 +12,7 @@ import stork.ad.*;
 import stork.core.*;
 import stork.cred.*;
 import stork.feather.*;
+import stork.feather.util.*;
 import stork.scheduler.*;
 import stork.util.*;
 import stork.core.server.Server;
@@ -46,6 +47,10 @@ public abstract class User {
   /** Job UUIDs with indices corresponding to job IDs. */
   private ArrayList<UUID> jobs = new ArrayList<UUID>();
 
+  /** Bandwidth limit for the user's jobs in bytes per second, or zero. */
+  public long bandwidth = 0;
+  private transient TokenBucket bucket;
+
   /** Used to hold session connections for reuse. */
   public transient SessionCache sessions = new SessionCache();
 
@@ -190,6 +195,23 @@ public abstract class User {
     } return list;
   }
 
+  /**
+   * Get the bucket limiting the bandwidth of the user's jobs. It falls under
+   * the server's limit.
+   */
+  public synchronized TokenBucket bandwidth() {
+    if (bucket == null)
+      bucket = new TokenBucket(server().bandwidth).rate(bandwidth);
+    return bucket;
+  }
+
+  /** Change the user's bandwidth limit, including for running jobs. */
+  public synchronized User bandwidth(long rate) {
+    bandwidth = rate;
+    bandwidth().rate(rate);
+    return this;
+  }
+
   /** Generate a random salt using a secure random number generator. */
   public static String salt() { return salt(24); }
 
@@ -2,32 +2,69 @@ package stork.feather;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 import stork.feather.util.*;
 
 /**
  * A promise primitive used for stringing together the results of asynchronous
  * operations and executing asynchronous handlers. All handling operations are
- * performed in a separate dispatch thread. It supports callbacks defined in
- * subclasses, chaining of results, deadlines, and back-cancellation.
+ * performed by a separate {@link Dispatcher}, which may run the handlers of
+ * different {@code Bell}s concurrently. The handlers and promises of a single
+ * {@code Bell}, however, are always run in order. It supports callbacks
+ * defined in subclasses, chaining of results, deadlines, and
+ * back-cancellation.
  *
  * @param <T> the supertype of objects that can ring this {@code Bell}.
  */
 public class Bell<T> implements Future<T> {
-  // Statically allocated pre-rung bells.
-  private final static Bell rungBell = new Bell((Object) null);
-  private final static Bell failedBell = new Bell((Throwable) null);
-  private final static Bell cancelledBell = new Bell().cancel();
-
   /** The object held by this bell, once rung. May contain T or Throwable. */
   private transient Object object;
-  private transient List<Bell<? super T>> promises = Collections.emptyList();
 
-  private static final Dispatcher dispatcher =
+  private static volatile Dispatcher dispatcher =
     new Dispatcher("Bell Dispatcher");
 
-  // State. 0 = unrung, 1 = thenned, 2 = done, 3 = failed
-  private transient byte state = 0;
+  // State. 0 = unrung, 1 = ringing, 2 = done, 3 = failed. The object is set
+  // by whichever thread moves the state from 0 to 1, and is visible to anyone
+  // who sees a state of 2 or 3.
+  private transient volatile int state = 0;
+  private static final AtomicIntegerFieldUpdater<Bell> STATE =
+    AtomicIntegerFieldUpdater.newUpdater(Bell.class, "state");
+
+  // A stack of promised bells, most recent first. Once the bell has rung and
+  // there is no task draining the stack, this is set to IDLE.
+  private transient volatile Node promises = null;
+  private static final AtomicReferenceFieldUpdater<Bell,Node> PROMISES =
+    AtomicReferenceFieldUpdater.newUpdater(Bell.class, Node.class, "promises");
+
+  // Tracing information, if this bell was created in a traced context. See
+  // Trace.
+  private final transient Trace.Event event =
+    Trace.enabled() ? Trace.created(getClass()) : null;
+
+  // Number of threads blocked in get() or sync(). Only modified while holding
+  // the monitor, so ringers only need to take the monitor if this is nonzero.
+  private transient volatile int waiters = 0;
+
+  /** A node in the promise stack. */
+  private static final class Node {
+    final Bell bell;
+    final Node next;
+    final int size;
+    Node(Bell bell, Node next) {
+      this.bell = bell;
+      this.next = next;
+      size = (next == null) ? 1 : next.size+1;
+    }
+  }
+
+  /** Marks a rung bell whose promise stack is not being drained. */
+  private static final Node IDLE = new Node(null, null);
+
+  // Statically allocated pre-rung bells.
+  private final static Bell rungBell = new Bell((Object) null);
+  private final static Bell failedBell = new Bell((Throwable) null);
+  private final static Bell cancelledBell = new Bell().cancel();
 
   /** Create an unrung {@code Bell}. */
   public Bell() { }
@@ -83,7 +120,7 @@ public class Bell<T> implements Future<T> {
    * @param object The {@code T} to ring the {@code Bell} with.
    * @return This {@code Bell}.
    */
-  public final synchronized Bell<T> ring(T object) {
+  public final Bell<T> ring(T object) {
     return ring(object, null);
   }
 
@@ -92,7 +129,7 @@ public class Bell<T> implements Future<T> {
    *
    * @return This {@code Bell}.
    */
-  public final synchronized Bell<T> ring() {
+  public final Bell<T> ring() {
     return ring(null, null);
   }
 
@@ -102,7 +139,7 @@ public class Bell<T> implements Future<T> {
    * @param error The {@code Throwable} to ring the {@code Bell} with.
    * @return This {@code Bell}.
    */
-  public final synchronized Bell<T> ring(Throwable error) {
+  public final Bell<T> ring(Throwable error) {
     return ring(null, (error != null) ? error : new NullPointerException());
   }
 
@@ -114,56 +151,190 @@ public class Bell<T> implements Future<T> {
    * @param error The error to ring the {@code Bell} with.
    * @return This {@code Bell}.
    */
-  private synchronized Bell<T> ring(T object, Throwable error) {
-    if (!isDone()) {
-      state = (error == null) ? (byte) 2 : 3;
-      this.object = (error == null) ? object : error;
-      dispatchHandlers();
-      dispatchPromises(promises);
-      promises = Collections.emptyList();
+  private Bell<T> ring(T object, Throwable error) {
+    ring(object, error, false);
+    return this;
+  }
+
+  /**
+   * Set the state of the bell and either dispatch its handlers and promises or
+   * return a task that will run them, depending on {@code inline}. If the
+   * bell has already been rung, this returns {@code null} and does nothing.
+   */
+  private DispatchRing ring(T object, Throwable error, boolean inline) {
+    return resolve(object, error) ? rang(inline) : null;
+  }
+
+  /**
+   * Called by whoever resolved the bell to either dispatch its handlers and
+   * promises or return a task that will run them.
+   */
+  private DispatchRing rang(boolean inline) {
+    // The top-level Bell class has no-op handlers, so only dispatch if this
+    // is a subclass of Bell or there are promises to ring.
+    if (getClass() == Bell.class && PROMISES.compareAndSet(this, null, IDLE))
+      return null;
+    DispatchRing task = new DispatchRing(true);
+    if (inline)
+      return task;
+    dispatch(task);
+    return null;
+  }
+
+  /**
+   * Atomically resolve the bell and wake up any blocked threads.
+   *
+   * @return {@code true} if this call resolved the bell; {@code false} if it
+   * had already been resolved.
+   */
+  private boolean resolve(T object, Throwable error) {
+    if (!STATE.compareAndSet(this, 0, 1))
+      return false;
+    this.object = (error == null) ? object : error;
+    state = (error == null) ? 2 : 3;
+    if (event != null)
+      event.rang();
+    if (waiters > 0) synchronized (this) {
       notifyAll();
-    } return this;
-  }
-
-  /**
-   * Dispatch this Bell's handlers. The top-level Bell class has no-op
-   * handlers, so only dispatch if this is a subclass of Bell.
-   */
-  private void dispatchHandlers() {
-    if (getClass() != Bell.class) dispatch(new Runnable() {
-      public void run() {
-        // Call the handlers.
-        if (isFailed()) try {
-          fail(error());
-        } catch (Throwable t) {
-          // Discard.
-        } else try {
-          done(object());
-        } catch (Throwable t) {
-          // Discard.
-        } try {
-          always();
-        } catch (Throwable t) {
-          // Discard.
-        }
+    } return true;
+  }
+
+  /**
+   * Run this Bell's handlers, then ring its promises. This runs in a single
+   * dispatched task so that handlers and promises on the same bell are never
+   * run out of order, even though the dispatcher may run tasks concurrently.
+   * The handlers of promised bells are run inline in the same task, up to a
+   * limited depth, so that they are also run in the order they were promised.
+   */
+  private final class DispatchRing implements Runnable {
+    private final boolean handlers;
+    // Times the wait to be run, if recording. See Recording.
+    private final Recording.Event queued = Recording.begin("bell.dispatch");
+    DispatchRing(boolean handlers) { this.handlers = handlers; }
+    public void run() { run(0); }
+    void run(int depth) {
+      if (queued != null)
+        queued.set("bell", Bell.this.getClass().getName()).commit();
+      // Anything created or rung from here is traced as caused by this bell.
+      boolean traced = event != null || Trace.enabled();
+      Trace.Event previous = traced ? Trace.enter(event) : null;
+      try {
+        if (handlers && Bell.this.getClass() != Bell.class)
+          runHandlers();
+        drainPromises(depth);
+      } finally {
+        if (traced) Trace.exit(previous);
       }
-    });
+    }
   }
 
-  /** Dispatch a promise to all promised bells. */
-  private <B extends Bell<? super T>> void dispatchPromises(List<B> bells) {
-    if (bells.isEmpty())
-      return;
-    if (isFailed())
-      dispatch(new DispatchFail<B>(bells, error()));
-    else
-      dispatch(new DispatchDone<B,T>(bells, object()));
+  /** The maximum depth promised bells will be rung inline to. */
+  private static final int MAX_INLINE_DEPTH = 32;
+
+  /** The maximum nesting of continuations run on a calling thread. */
+  private static volatile int inlineDepth = 0;
+
+  /** The current nesting of continuations run on this thread. */
+  private static final ThreadLocal<int[]> inlined = new ThreadLocal<int[]>() {
+    protected int[] initialValue() { return new int[1]; }
+  };
+
+  /**
+   * Run a task that drains an already-rung bell on the calling thread, if
+   * inline continuations are enabled and the nesting limit has not been
+   * reached. Only the promised bells themselves are rung inline; their own
+   * promises go through the dispatcher unless they are promised later.
+   *
+   * @return {@code true} if the task was run; {@code false} if it should be
+   * dispatched instead.
+   */
+  private boolean runInline(DispatchRing task) {
+    int max = inlineDepth;
+    if (max <= 0)
+      return false;
+    int[] depth = inlined.get();
+    if (depth[0] >= max)
+      return false;
+    depth[0]++;
+    try {
+      task.run(MAX_INLINE_DEPTH-1);
+    } finally {
+      depth[0]--;
+    }
+    return true;
   }
 
-  /** Dispatch a promise to a single bell. */
-  private <B extends Bell<? super T>> void dispatchPromise(B bell) {
-    List<B> bells = Collections.singletonList(bell);
-    dispatchPromises(bells);
+  /**
+   * Get the maximum number of nested continuations that will be run inline on
+   * a calling thread. Zero means inline continuations are disabled.
+   *
+   * @return The maximum nesting of inline continuations.
+   */
+  public static int inlineDepth() {
+    return inlineDepth;
+  }
+
+  /**
+   * Enable or disable inline continuations. When enabled, promising a {@code
+   * Bell} to one which has already rung will ring the promised {@code Bell}
+   * and run its handlers on the calling thread instead of handing them to
+   * the dispatcher, until {@code depth} such continuations are nested on the
+   * same thread. This saves a thread handoff per link in chains built on
+   * already-rung {@code Bell}s such as {@link #rungBell()}.
+   * <p/>
+   * This is disabled by default because it changes when handlers run. With
+   * it enabled, the handlers of a {@link Promise} or {@link As} created on a
+   * rung {@code Bell} run before the subclass's constructor has finished, so
+   * they must not rely on the subclass's own field initializers, and they run
+   * while the caller holds whatever locks it holds.
+   *
+   * @param depth the maximum nesting of inline continuations, or zero to
+   * always use the dispatcher.
+   */
+  public static void inlineDepth(int depth) {
+    inlineDepth = (depth < 0) ? 0 : depth;
+  }
+
+  /** Call the handlers. */
+  private void runHandlers() {
+    if (isFailed()) try {
+      fail(error());
+    } catch (Throwable t) {
+      // Discard.
+    } else try {
+      done(object());
+    } catch (Throwable t) {
+      // Discard.
+    } try {
+      always();
+    } catch (Throwable t) {
+      // Discard.
+    }
+  }
+
+  /**
+   * Ring promised bells until there are none left, then mark the promise stack
+   * idle so the next promise will start a new drain.
+   */
+  private void drainPromises(int depth) {
+    boolean inline = depth < MAX_INLINE_DEPTH;
+    while (true) {
+      Node head = PROMISES.getAndSet(this, null);
+      if (head == null) {
+        if (PROMISES.compareAndSet(this, null, IDLE))
+          return;
+        continue;  // Someone promised in the meantime.
+      }
+      // The stack is in reverse order, so flip it.
+      Bell[] bells = new Bell[head.size];
+      for (int i = bells.length-1; head != null; head = head.next)
+        bells[i--] = head.bell;
+      for (Bell b : bells) {
+        DispatchRing task = ((Bell<T>) b).ring(object(), error(), inline);
+        if (task != null)
+          task.run(depth+1);
+      }
+    }
   }
 
   /**
@@ -175,10 +346,12 @@ public class Bell<T> implements Future<T> {
    * {@code false} otherwise.
    * @see Future#cancel(boolean)
    */
-  public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+  public boolean cancel(boolean mayInterruptIfRunning) {
     if (isDone())
       return false;
-    ring(null, new CancellationException());
+    if (!resolve(null, new CancellationException()))
+      return false;
+    rang(false);
     return true;
   }
 
@@ -198,48 +371,61 @@ public class Bell<T> implements Future<T> {
    * CancellationException}.
    * @see Future#isCancelled
    */
-  public synchronized boolean isCancelled() {
+  public boolean isCancelled() {
     return isFailed() && error() instanceof CancellationException;
   }
 
   /** Return {@code true} if the {@code Bell} is unrung. */
-  private synchronized boolean isUnrung() {
+  private boolean isUnrung() {
     return state == 0;
   }
 
   /** Return {@code true} if the {@code Bell} has been rung. */
-  public final synchronized boolean isDone() {
+  public final boolean isDone() {
     return state >= 2;
   }
 
   /** Return {@code true} if the {@code Bell} rang successfully. */
-  public final synchronized boolean isSuccessful() {
-    return isDone() && state == 2;
+  public final boolean isSuccessful() {
+    return state == 2;
   }
 
   /** Return {@code true} if the {@code Bell} failed. */
-  public final synchronized boolean isFailed() {
-    return isDone() && state == 3;
+  public final boolean isFailed() {
+    return state == 3;
   }
 
   /** Wait for the {@code Bell} to be rung, then return the value. */
-  public synchronized T get() throws InterruptedException, ExecutionException {
-    while (!isDone())
-      wait();
-    return getOrThrow();
+  public T get() throws InterruptedException, ExecutionException {
+    if (!isDone()) synchronized (this) {
+      waiters++;
+      try {
+        while (!isDone())
+          wait();
+      } finally {
+        waiters--;
+      }
+    } return getOrThrow();
   }
 
   /**
    * Wait for the {@code Bell} to be rung up to the specified time, then return the
    * value.
    */
-  public synchronized T get(long timeout, TimeUnit unit)
+  public T get(long timeout, TimeUnit unit)
   throws InterruptedException, ExecutionException, TimeoutException {
-    if (!isDone())
-      unit.timedWait(this, timeout);
-    if (!isDone())
+    if (!isDone()) synchronized (this) {
+      long end = System.nanoTime()+unit.toNanos(timeout);
+      waiters++;
+      try {
+        for (long t = end; !isDone() && t > 0; t = end-System.nanoTime())
+          TimeUnit.NANOSECONDS.timedWait(this, t);
+      } finally {
+        waiters--;
+      }
+    } if (!isDone()) {
       throw new TimeoutException();
-    return getOrThrow();
+    } return getOrThrow();
   }
 
   /** Either get the object or throw the wrapped error. Only call if done. */
@@ -258,11 +444,18 @@ public class Bell<T> implements Future<T> {
    * convenient for the caller. It blocks uninterruptably and throws unchecked
    * exceptions.
    */
-  public synchronized T sync() {
-    while (!isDone()) try {
-      wait();
-    } catch (InterruptedException e) {
-      // Ignore it.
+  public T sync() {
+    if (!isDone()) synchronized (this) {
+      waiters++;
+      try {
+        while (!isDone()) try {
+          wait();
+        } catch (InterruptedException e) {
+          // Ignore it.
+        }
+      } finally {
+        waiters--;
+      }
     } if (!isFailed()) {
       return object();
     } if (error() instanceof RuntimeException) {
@@ -318,24 +511,32 @@ public class Bell<T> implements Future<T> {
    * Promise to ring another {@code Bell} when this {@code Bell} rings.
    * Promised {@code Bell}s will ring in the order they are promised and after
    * this {@code Bell}'s handlers have been called.
+   * <p/>
+   * If inline continuations are enabled (see {@link #inlineDepth(int)}) and
+   * this {@code Bell} has already rung, {@code bell} may be rung and have its
+   * handlers run on the calling thread before this method returns.
    *
    * @param bell the {@code Bell} to promise to this {@code Bell}.
    * @return The value passed in for {@code bell}.
    */
-  public synchronized <V extends Bell<? super T>> V promise(V bell) {
-    if (bell.isDone()) {
+  public <V extends Bell<? super T>> V promise(V bell) {
+    if (bell.isDone())
       return bell;  // Don't be silly...
-    } if (isDone()) {
-      dispatchPromise(bell);  // We've already rung, dispatch.
-    } else switch (promises.size()) {
-      case 0:  // This is an immutable empty list. Change to singleton.
-        promises = (List) Collections.singletonList(bell);
-        break;
-      case 1:  // This is the singleton. Make a mutable list.
-        promises = new LinkedList<Bell<? super T>>(promises);
-      default:
-        promises.add(bell);
-    } return bell;
+    while (true) {
+      Node head = promises;
+      if (head == IDLE) {
+        // We've already rung and nothing is draining, so start a drain.
+        if (PROMISES.compareAndSet(this, IDLE, new Node(bell, null))) {
+          DispatchRing task = new DispatchRing(false);
+          if (!runInline(task))
+            dispatch(task);
+          return bell;
+        }
+      } else if (PROMISES.compareAndSet(this, head, new Node(bell, head))) {
+        // Whoever rings or is draining will take care of it.
+        return bell;
+      }
+    }
   }
 
   /**
@@ -497,7 +698,7 @@ public class Bell<T> implements Future<T> {
    * @param deadline the time in seconds after call time that the {@code Bell}
    * may remain unresolved.
    */
-  public synchronized Bell<T> deadline(double deadline) {
+  public Bell<T> deadline(double deadline) {
     if (!isDone()) new Task() {
       public void run() { ring(new TimeoutException()); }
     }.dispatch(deadline);
@@ -612,7 +813,9 @@ public class Bell<T> implements Future<T> {
           public void done() {
             bell.ring();
           } public void fail(Throwable t) {
-            if (++failed == len) bell.ring(t);
+            synchronized (bell) {
+              if (++failed == len) bell.ring(t);
+            }
           }
         };
       }
@@ -649,7 +852,9 @@ public class Bell<T> implements Future<T> {
         final Bell bell = this;
         for (final Bell b : bells) if (b != null) b.new Promise() {
           public void done() {
-            if (++succeeded == len) bell.ring();
+            synchronized (bell) {
+              if (++succeeded == len) bell.ring();
+            }
           } public void fail(Throwable t) {
             bell.ring(t);
           }
@@ -684,7 +889,7 @@ public class Bell<T> implements Future<T> {
       if (b != null) return b;
     Bell bell = new Bell() {
       int finished = 0;
-      public void always() {
+      public synchronized void always() {
         if (++finished >= len) ring();
       }
     };
@@ -721,6 +926,29 @@ public class Bell<T> implements Future<T> {
     });
   }
 
+  /**
+   * Get the {@code Dispatcher} used to run handlers and dispatched tasks.
+   *
+   * @return The {@code Dispatcher} used by {@code Bell}s.
+   */
+  public static Dispatcher dispatcher() {
+    return dispatcher;
+  }
+
+  /**
+   * Set the {@code Dispatcher} used to run handlers and dispatched tasks.
+   * Tasks already dispatched to the previous {@code Dispatcher} will still be
+   * run by it.
+   *
+   * @param dispatcher the {@code Dispatcher} to use from now on.
+   * @throws NullPointerException if {@code dispatcher} is {@code null}.
+   */
+  public static void dispatcher(Dispatcher dispatcher) {
+    if (dispatcher == null)
+      throw new NullPointerException("dispatcher");
+    Bell.dispatcher = dispatcher;
+  }
+
   /** Put some runnable task on the main dispatch queue. */
   public static void dispatch(Runnable runnable) {
     dispatcher.dispatch(runnable);
@@ -741,28 +969,3 @@ public class Bell<T> implements Future<T> {
     public abstract void run();
   }
 }
-
-/** Dispatch a successful value to the given bells. */
-final class DispatchDone<B extends Bell<? super C>,C> implements Runnable {
-  final C object;
-  final List<B> bells;
-  DispatchDone(List<B> bells, C object) {
-    this.bells = bells;
-    this.object = object;
-  } public void run() {
-    for (B b : bells) b.ring(object);
-  }
-}
-
-/** Dispatch a failure value to the given bells. */
-final class DispatchFail<B extends Bell<?>> implements Runnable {
-  final Throwable error;
-  final List<B> bells;
-  DispatchFail(List<B> bells, Throwable error) {
-    this.bells = bells;
-    this.error = error;
-  } public void run() {
-    for (B b : bells) b.ring(error);
-  }
-}
-
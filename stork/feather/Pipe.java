@@ -2,30 +2,52 @@ package stork.feather;
 
 import java.util.*;
 
+import stork.feather.util.MemoryBudget;
+
 /**
  * A base class for anything which can serve as an element in a proxy transfer
  * pipeline. In particular, this is the base class for {@link Sink} and {@link
  * Tap}.
+ * <p/>
+ * {@code Slice}s are always passed downstream one at a time and in the order
+ * they were drained. However, a {@code Pipe} will accept further {@code
+ * Slice}s from upstream while earlier ones are still being drained, up to a
+ * window measured in bytes and in {@code Slice}s. Only once the window is
+ * exhausted does the {@code Bell} returned by {@link #drain(Slice)} hold the
+ * upstream element back. This lets a {@code Tap} read ahead while a slow
+ * {@code Sink} is writing. See {@link #window(long, int)}.
  */
 public class Pipe {
+  /** Default window sizes for new pipes. */
+  private static volatile long defaultWindowBytes = 0;
+  private static volatile int defaultWindowSlices = 1;
+
   /** Upstream and downstream pipe elements. */
   private Pipe upstream, downstream;
   /** Will ring when this pipe has been started. */
   private Bell startBell;
   /** Will ring when this pipe has finished. */
   private final Bell finishBell = new Bell() {
-    public void always() {
-      drainBell.new Promise() {
-        public void done() {
-          downstream().finish();
-        } public void fail(Throwable t) {
-          downstream().finish(t);
-        }
-      };
-    }
+    public void done() { ending(null); }
+    public void fail(Throwable t) { ending(t); }
   };
   /** Synchronizes drains. First ring should be by start(). */
   private Bell drainBell = new Bell();
+  /** Will ring when this pipe and everything downstream have finished. */
+  private final Bell onFinish = new Bell();
+
+  /** The flow control window, and how much of it is in use. */
+  private long windowBytes = defaultWindowBytes;
+  private int windowSlices = defaultWindowSlices;
+  private long pendingBytes;
+  private int pendingSlices;
+  /** Rings when the window opens up again. Null if the window is open. */
+  private Bell creditBell;
+  /** The memory budget account the window is charged to. */
+  private MemoryBudget.Account account = MemoryBudget.global().shared();
+  private boolean awaitingBudget = false;
+  /** The error a drain failed with, if any. */
+  private Throwable error;
 
   /** The orientation of a {@code Pipe} in a pipeline. */
   public static enum Orientation {
@@ -130,6 +152,116 @@ public class Pipe {
       (sink != null ? Orientation.CONNECTED : Orientation.TAP);
   }
 
+  /**
+   * Set the default flow control window for {@code Pipe}s created after this
+   * is called. See {@link #window(long, int)}.
+   *
+   * @param bytes the number of bytes which may be in flight, or zero for no
+   * limit.
+   * @param slices the number of {@code Slice}s which may be in flight.
+   */
+  public static void defaultWindow(long bytes, int slices) {
+    defaultWindowBytes = (bytes < 0) ? 0 : bytes;
+    defaultWindowSlices = (slices < 1) ? 1 : slices;
+  }
+
+  /**
+   * Set the flow control window for this {@code Pipe}. The {@code Bell}
+   * returned by {@link #drain(Slice)} rings immediately as long as fewer than
+   * {@code bytes} bytes and fewer than {@code slices} {@code Slice}s are
+   * waiting to be drained downstream. A window of one {@code Slice} means
+   * each {@code Slice} must be drained downstream before the next is
+   * accepted.
+   *
+   * @param bytes the number of bytes which may be in flight, or zero for no
+   * limit.
+   * @param slices the number of {@code Slice}s which may be in flight.
+   * @return This {@code Pipe}.
+   */
+  public synchronized Pipe window(long bytes, int slices) {
+    windowBytes = (bytes < 0) ? 0 : bytes;
+    windowSlices = (slices < 1) ? 1 : slices;
+    if (creditBell != null && hasCredit()) {
+      creditBell.ring();
+      creditBell = null;
+    } return this;
+  }
+
+  /** Get the memory budget account this {@code Pipe}'s window draws from. */
+  public synchronized MemoryBudget.Account account() { return account; }
+
+  /**
+   * Charge the bytes waiting in this {@code Pipe}'s window to {@code
+   * account}. Once the account is not allowed to take more, the window is
+   * treated as full. By default, windows are charged to the global budget's
+   * shared account. See {@link MemoryBudget}.
+   *
+   * @param account the account to charge.
+   * @return This {@code Pipe}.
+   */
+  public synchronized Pipe account(MemoryBudget.Account account) {
+    account.take(pendingBytes);
+    this.account.give(pendingBytes);
+    this.account = account;
+    return this;
+  }
+
+  // Check if there is room in the window and the budget. Must hold lock.
+  private boolean hasCredit() {
+    return windowOpen() && account.allowed();
+  }
+
+  // Check if there is room in the window. Must hold lock.
+  private boolean windowOpen() {
+    return pendingSlices < windowSlices &&
+           (windowBytes <= 0 || pendingBytes < windowBytes);
+  }
+
+  // Wait for the budget to allow more, then open the window if there's still
+  // room in it. Must hold lock.
+  private void awaitBudget() {
+    if (awaitingBudget)
+      return;
+    awaitingBudget = true;
+    account.room().new Promise() {
+      public void done() {
+        synchronized (Pipe.this) {
+          awaitingBudget = false;
+          if (creditBell == null) {
+            return;
+          } if (hasCredit()) {
+            creditBell.ring();
+            creditBell = null;
+          } else if (windowOpen()) {
+            awaitBudget();
+          }
+        }
+      }
+    };
+  }
+
+  // Called when a slice has left the window. Returns true if t is the first
+  // error.
+  private synchronized boolean credit(long bytes, Throwable t) {
+    boolean first = (t != null && error == null);
+    pendingSlices--;
+    pendingBytes -= bytes;
+    account.give(bytes);
+    if (first)
+      error = t;
+    if (creditBell == null) {
+      return first;
+    } if (error != null) {
+      creditBell.ring(error);
+      creditBell = null;
+    } else if (hasCredit()) {
+      creditBell.ring();
+      creditBell = null;
+    } else if (windowOpen()) {
+      awaitBudget();
+    } return first;
+  }
+
   /**
    * Start the flow of data through the pipeline. This method returns as soon
    * as possible. Preparation should be done asynchronously.
@@ -163,11 +295,16 @@ public class Pipe {
    * default implementation is guaranteed never to throw an {@code Exception}.
    * Any {@code Exception} thrown by a downstream {@code Pipe} will be wrapped
    * in a {@code Bell}.
+   * <p/>
+   * Calling this passes ownership of {@code slice} to this {@code Pipe}, which
+   * must either pass it downstream or release it. If this method throws, the
+   * caller retains ownership. See {@link Slice} for details.
    *
    * @param slice a {@code Slice} being drained through the pipeline.
    * @return A {@code Bell} that rings when the pipeline is ready for more
-   * data. If the returned {@code Bell} fails, the upstream {@code Pipe} should
-   * cease the draining of {@code Slice}s.
+   * data, which is as soon as there is room in the window. If the returned
+   * {@code Bell} fails, the upstream {@code Pipe} should cease the draining
+   * of {@code Slice}s.
    * @throws IllegalStateException if this method is called after {@link
    * #finish()} has been called or before the pipeline has been configured.
    * @throws Exception if {@code Pipe} is unable to drain {@code slice} for
@@ -175,26 +312,80 @@ public class Pipe {
    * throw.
    */
   protected synchronized Bell drain(final Slice slice) throws Exception {
-    if (finishBell.isDone())
+    if (error != null) {
+      slice.release();
+      return new Bell(error);
+    } if (finishBell.isDone()) {
       throw new IllegalStateException("Pipeline has finished.");
+    }
+
     final Bell next = new Bell();
+    final long length = slice.length();
+    final long offset = slice.offset();
+
+    pendingSlices++;
+    pendingBytes += length;
+    account.take(length);
+
     drainBell.new Promise() {
       public void done() {
         safeDrain(slice).promise(next);
       } public void fail(Throwable t) {
+        slice.release();
+        next.ring(t);
         finish(t);
       }
     };
-    drainBell = next;
-    return next.detach();
+    // Anything waiting on the last drain runs after these.
+    drainBell = next.new Promise() {
+      public void done() {
+        drained(offset, length);
+        credit(length, null);
+      } public void fail(Throwable t) {
+        if (credit(length, t))
+          failed(t);
+      }
+    };
+
+    if (hasCredit())
+      return Bell.rungBell();
+    if (creditBell == null)
+      creditBell = new Bell();
+    if (windowOpen())
+      awaitBudget();
+    return creditBell.detach();
   }
 
-  // Safe wrapper around downstream.drain().
+  /**
+   * Called once downstream has finished draining a {@code Slice} drained
+   * through this {@code Pipe}. This is called for each {@code Slice} in the
+   * order they were drained. The {@code Slice} itself may already have been
+   * released, so only its position is given. The default implementation does
+   * nothing.
+   *
+   * @param offset the offset of the {@code Slice}, or a negative number if
+   * it was unspecified.
+   * @param length the length of the {@code Slice}.
+   */
+  protected void drained(long offset, long length) { }
+
+  /**
+   * Called the first time downstream fails to drain a {@code Slice} drained
+   * through this {@code Pipe}. No further {@code Slice}s will be accepted
+   * once this has been called. The default implementation does nothing.
+   *
+   * @param error the error downstream failed with.
+   */
+  protected void failed(Throwable error) { }
+
+  // Safe wrapper around downstream.drain(). Releases the slice if downstream
+  // refuses it.
   private Bell safeDrain(Slice slice) {
     try {
       Bell bell = downstream().drain(slice);
       return (bell != null) ? bell.detach() : Bell.rungBell();
     } catch (Exception e) {
+      slice.release();
       return Bell.wrap(e);
     }
   }
@@ -224,6 +415,55 @@ public class Pipe {
       finishBell.ring(error);
   }
 
+  // Once the last slice has been drained, pass the finish downstream, then
+  // wait for downstream to finish. An error from upstream takes precedence
+  // over one from draining.
+  private void ending(final Throwable error) {
+    Bell last;
+    synchronized (this) {
+      last = drainBell;
+    } last.new Promise() {
+      public void done() { end(error); }
+      public void fail(Throwable t) { end(error != null ? error : t); }
+    };
+  } private void end(final Throwable error) {
+    Pipe d = downstream();
+    d.finish(error);
+    d.onFinish().new Promise() {
+      public void done() { ended(error); }
+      public void fail(Throwable t) { ended(error != null ? error : t); }
+    };
+  } private void ended(Throwable error) {
+    try {
+      finished(error);
+    } finally {
+      if (error == null)
+        onFinish.ring();
+      else
+        onFinish.ring(error);
+    }
+  }
+
+  /**
+   * Called once this {@code Pipe} has finished, every {@code Slice} drained
+   * through it has been drained, and everything downstream has {@link
+   * #onFinish() finished}. The default implementation does nothing.
+   *
+   * @param error the error the pipeline finished with, or {@code null} if
+   * everything was written successfully.
+   */
+  protected void finished(Throwable error) { }
+
+  /**
+   * Get a {@code Bell} which rings once this {@code Pipe} has finished,
+   * every {@code Slice} drained through it has been drained, and everything
+   * downstream has finished. It fails if the pipeline finished with an error
+   * or anything failed to be drained.
+   *
+   * @return A {@code Bell} which rings when the pipeline has finished.
+   */
+  public Bell onFinish() { return onFinish.detach(); }
+
   /**
    * Retrieve the pipeline as a {@code List}. This is intended to be used for
    * debugging purposes primarily, and the returned {@code List} is purely
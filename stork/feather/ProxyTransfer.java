@@ -15,18 +15,14 @@ import stork.feather.util.*;
  */
 public class ProxyTransfer<S extends Resource<?,S>, D extends Resource<?,D>>
 extends Transfer<S,D> {
-  private LinkedList<Pending> queue = new LinkedList<Pending>();
+  private TransferOrder queue = TransferOrder.discovery();
   private Throwable error = null;
 
   // A pending transfer and a bell to ring when it starts.
-  private static class Pending {
-    final Bell bell;
-    final Path path;
-    protected Pending(Path path) {
-      this(new Bell(), path);
-    } protected Pending(Bell bell, Path path) {
-      this.bell = bell;
-      this.path = path;
+  private static class Pending extends TransferOrder.Entry {
+    final Bell bell = new Bell();
+    protected Pending(Path path, Stat stat) {
+      super(path, stat);
     }
   }
 
@@ -34,6 +30,67 @@ extends Transfer<S,D> {
   private Set<Path> transfers = new HashSet<Path>();
   private Set<Path> listings = new HashSet<Path>();
 
+  // The number of resources to transfer at once. See concurrency(int).
+  private int concurrency = 1;
+  // Segmentation settings. See segment().
+  private int segments = 1;
+  private long segmentSize = 64 << 20;
+  // Whether the destination takes positional writes. Set by the first file.
+  private Boolean random;
+  // Offsets files have been written up to, for resuming. See resume().
+  private Map<String,Long> offsets;
+  // Completed files and directories, for skipping. See checkpoint().
+  private Checkpoint checkpoint;
+
+  // Small files are sent in archives of up to batchSize files. See aggregate().
+  private long aggregate = -1;
+  private int batchSize = 1;
+  // Whether the destination can expand archives. Set by the first batch.
+  private Boolean archives;
+  // The batch being filled, and full batches waiting to start.
+  private List<Pending> batch = new ArrayList<Pending>();
+  private LinkedList<List<Pending>> batches = new LinkedList<List<Pending>>();
+
+  // Checksums of files as they were read. See checksum().
+  private String checksum;
+  private Map<String,String> sums;
+  private boolean verify;
+
+  // Rate limits applied to all data. See throttle().
+  private List<TokenBucket> buckets = new ArrayList<TokenBucket>();
+
+  // Staging buffer limits, and the bytes spilled to disk. See stage().
+  private long stageMemory = 0, stageDisk = 0;
+  private java.io.File stageDir;
+  private long spilled = 0;
+
+  // Where file spans are recorded, if tracing. See trace().
+  private Trace trace;
+  // Which attempt at the transfer this is, for recording. See attempt().
+  private int attempt = 1;
+
+  // Further destinations fed from the same reads. See replicate().
+  private List<D> replicas = new ArrayList<D>();
+  // Destinations which have failed, by index, with the primary at zero.
+  private Map<Integer,Throwable> failed = new TreeMap<Integer,Throwable>();
+
+  // Directories whose contents are still being transferred, and how many
+  // entries remain in each. A directory's own listing counts as an entry.
+  private Map<Path,Integer> open = new HashMap<Path,Integer>();
+
+  // The memory budget account the transfer's pipelines draw from.
+  private final MemoryBudget.Account account = MemoryBudget.global().account();
+
+  // Latencies of slices draining to the destination, of whole files, and of
+  // source listings, and bytes moved by endpoint.
+  private final Metrics.Distribution sliceLatency, fileLatency, listLatency;
+  private final Metrics.Counter bytesRead, bytesWritten;
+  // Whether the endpoint labels include hosts. See hostLabels().
+  private static volatile boolean hostLabels = false;
+
+  /** File progress of the transfer. */
+  public final TransferInfo files = new TransferInfo();
+
   /**
    * Create a {@code ProxyTransfer} that will transfer from {@code source} to
    * {@code destination}.
@@ -44,11 +101,293 @@ extends Transfer<S,D> {
   public ProxyTransfer(S source, D destination) {
     super(source, destination);
 
+    Metrics metrics = Metrics.global();
+    String[] src = labels(source), dest = labels(destination);
+    sliceLatency = metrics.distribution(
+      "slice_drain_nanoseconds", "scheme", dest[1]);
+    fileLatency = metrics.distribution(
+      "file_transfer_nanoseconds", "scheme", dest[1]);
+    listLatency = metrics.distribution(
+      "listing_nanoseconds", "scheme", src[1]);
+    bytesRead = metrics.counter("bytes_read_total", src);
+    bytesWritten = metrics.counter("bytes_written_total", dest);
+
     onStart().new Promise() {
-      public void done() { transfer(Path.ROOT); }
+      public void done() {
+        if (isCompleted(Path.ROOT))
+          checkIfComplete();
+        else
+          transfer(Path.ROOT, null);
+      }
     };
   }
 
+  /**
+   * Set whether transfer metrics are labeled with endpoint hostnames as well
+   * as schemes. This is off by default, since every host named by a transfer
+   * then gets metrics of its own which are never removed.
+   *
+   * @param enabled whether to label metrics with hostnames.
+   */
+  public static void hostLabels(boolean enabled) { hostLabels = enabled; }
+
+  // Get metric labels for the module, and possibly host, of an endpoint.
+  private static String[] labels(Resource r) {
+    URI uri = r.uri();
+    String scheme = String.valueOf(uri.scheme());
+    if (!hostLabels)
+      return new String[] { "scheme", scheme };
+    String host = (uri.host() == null) ? "" : uri.host().toLowerCase();
+    return new String[] { "scheme", scheme, "host", host };
+  }
+
+  /**
+   * Transfer large files in up to {@code count} segments of at least {@code
+   * size} bytes each, with each segment read by its own ranged {@code Tap} in
+   * parallel. This only applies to files whose source supports ranged reads
+   * (see {@link Resource#tap(long, long)}) and whose destination {@code Sink}
+   * supports positional writes (see {@link Sink#random()}). Other files are
+   * transferred as a single stream. A segmented file still counts as a single
+   * transfer towards {@link #concurrency()}.
+   *
+   * @param count the most segments to split a file into.
+   * @param size the smallest size of a segment, in bytes.
+   * @return This {@code ProxyTransfer}.
+   */
+  public synchronized ProxyTransfer<S,D> segment(int count, long size) {
+    segments = (count < 1) ? 1 : count;
+    segmentSize = (size < 1) ? 1 : size;
+    return this;
+  }
+
+  /**
+   * Keep track of how far into each file data has been written in {@code
+   * offsets}, and resume files that already have an entry from there. Keys
+   * are file paths relative to the source. An entry is updated each time the
+   * destination finishes writing a chunk, and removed once the file is done.
+   * <p/>
+   * When a file has an entry, the destination is stat'd, and the file is
+   * resumed from the smaller of the recorded offset and the destination's
+   * size. This is only done for files which are transferred as a single
+   * stream, whose destination {@code Sink} supports positional writes, and
+   * whose source supports ranged reads. Anything else starts over.
+   * <p/>
+   * {@code offsets} will be updated from several threads, and should be safe
+   * for concurrent use.
+   *
+   * @param offsets a map of file paths to offsets.
+   * @return This {@code ProxyTransfer}.
+   */
+  public synchronized ProxyTransfer<S,D> resume(Map<String,Long> offsets) {
+    this.offsets = offsets;
+    return this;
+  }
+
+  /**
+   * Record completed files in {@code checkpoint}, and skip anything it says
+   * has already been completed. Skipped files are neither stat'd nor
+   * transferred. Once everything in a directory has been completed, the
+   * directory is recorded in place of its contents.
+   *
+   * @param checkpoint the {@code Checkpoint} to consult and update.
+   * @return This {@code ProxyTransfer}.
+   */
+  public synchronized ProxyTransfer<S,D> checkpoint(Checkpoint checkpoint) {
+    this.checkpoint = checkpoint;
+    return this;
+  }
+
+  /**
+   * Set the policy deciding the order in which pending resources are
+   * started. Any resources already pending are moved over to the new policy.
+   * By default, resources are started in the order they are discovered.
+   *
+   * @param queue the policy to use.
+   * @return This {@code ProxyTransfer}.
+   * @see TransferOrder
+   */
+  public synchronized ProxyTransfer<S,D> order(TransferOrder queue) {
+    for (TransferOrder.Entry e; (e = this.queue.poll()) != null;)
+      queue.add(e, false);
+    this.queue = queue;
+    return this;
+  }
+
+  /**
+   * Also write everything to {@code replica}, reading each file from the
+   * source only once. Each file is fed to every destination through a {@link
+   * Tee}, so the slowest destination bounds how fast data is read.
+   * <p/>
+   * If a destination fails, it is dropped for the rest of the transfer while
+   * the others carry on. Once everything else is done, the transfer fails,
+   * naming the destinations which failed. The transfer fails right away if
+   * every destination has failed. Files are only recorded in the checkpoint
+   * (see {@link #checkpoint(Checkpoint)}) while every destination is healthy,
+   * and replicated transfers are not resumed (see {@link #resume(Map)}).
+   *
+   * @param replica another destination to write to.
+   * @return This {@code ProxyTransfer}.
+   */
+  public synchronized ProxyTransfer<S,D> replicate(D replica) {
+    replicas.add(replica);
+    return this;
+  }
+
+  /**
+   * Send files no larger than {@code threshold} bytes in batches of up to
+   * {@code count} files, each batch streamed as a single tar archive (see
+   * {@link TarTap}) and expanded by the destination as it arrives (see {@link
+   * Resource#archiveSink()}). This saves the per-file cost of opening a
+   * {@code Sink} and waiting for it to finish, which dominates transfers of
+   * many small files. A batch counts as a single transfer towards {@link
+   * #concurrency()}.
+   * <p/>
+   * Only files whose size is known from a listing are batched. If the
+   * destination does not support archives, or there are replicas (see {@link
+   * #replicate(Resource)}), files are transferred one at a time as usual.
+   * Files in a batch are only counted as done once the whole batch is.
+   *
+   * @param threshold the largest file size to batch, or a negative number to
+   * disable batching.
+   * @param count the most files to put in a batch.
+   * @return This {@code ProxyTransfer}.
+   */
+  public synchronized ProxyTransfer<S,D> aggregate(long threshold, int count) {
+    aggregate = (count > 1) ? threshold : -1;
+    batchSize = Math.max(count, 1);
+    return this;
+  }
+
+  /**
+   * Compute a checksum of each file as it is read, and record it in {@code
+   * sums} by the file's path relative to the source. Checksums are computed
+   * by a {@link DigestPipe} in the data pipeline, so the data is not read
+   * again. If {@code verify} is set, the destination is asked for the
+   * checksum of each file once it is written (see {@link
+   * Resource#checksum(String)}), and the transfer fails if they differ.
+   * Destinations which cannot compute checksums are not verified.
+   * <p/>
+   * Only files transferred as a single stream from the start are checksummed.
+   * Segmented, resumed, and batched files (see {@link #segment(int, long)},
+   * {@link #resume(Map)}, and {@link #aggregate(long, int)}) are not.
+   *
+   * @param algorithm the checksum algorithm, or {@code null} to disable
+   * checksums. See {@link Digest#create(String)}.
+   * @param sums a map to record checksums in, which should be safe for
+   * concurrent use.
+   * @param verify whether to compare checksums with the destination.
+   * @return This {@code ProxyTransfer}.
+   * @throws IllegalArgumentException if the algorithm is not supported.
+   */
+  public synchronized ProxyTransfer<S,D> checksum(
+      String algorithm, Map<String,String> sums, boolean verify) {
+    if (algorithm != null)
+      Digest.create(algorithm);
+    this.checksum = algorithm;
+    this.sums = sums;
+    this.verify = verify;
+    return this;
+  }
+
+  /**
+   * Limit the rate data is read at with the given {@link TokenBucket}s. Every
+   * stream the transfer reads passes through a {@link ThrottlePipe} taking
+   * from all of them, so the buckets' rates are shared by the whole transfer,
+   * and by anything else taking from the same buckets. The rates may be
+   * changed while the transfer is running.
+   *
+   * @param buckets the buckets to take from.
+   * @return This {@code ProxyTransfer}.
+   */
+  public synchronized ProxyTransfer<S,D> throttle(List<TokenBucket> buckets) {
+    this.buckets = new ArrayList<TokenBucket>(buckets);
+    return this;
+  }
+
+  /**
+   * Record the {@code Bell}s involved in transferring each file, or each
+   * batch of small files, as a {@link Trace.Span} in {@code trace}, to find
+   * out where the time goes. The caller should finish the trace once it is
+   * done with it.
+   *
+   * @param trace the trace to record spans in, or {@code null} to stop.
+   * @return This {@code ProxyTransfer}.
+   */
+  public synchronized ProxyTransfer<S,D> trace(Trace trace) {
+    this.trace = trace;
+    return this;
+  }
+
+  /**
+   * Note which attempt at the transfer this is, counting from one. This is
+   * given with each file in a {@link Recording}, so files which were retried
+   * can be told apart.
+   *
+   * @param attempt the attempt number.
+   * @return This {@code ProxyTransfer}.
+   */
+  public synchronized ProxyTransfer<S,D> attempt(int attempt) {
+    this.attempt = attempt;
+    return this;
+  }
+
+  /**
+   * Buffer data between each {@code Tap} and its {@code Sink} in a {@link
+   * SpillPipe}, holding up to {@code memory} bytes in memory and up to {@code
+   * disk} more in a temporary file. This lets reads from a fast source finish
+   * and release their connections while a slow destination catches up. A
+   * file is still only counted as done once its {@code Sink} has finished
+   * writing everything buffered for it (see {@link Pipe#onFinish()}).
+   *
+   * @param memory the most bytes to buffer in memory for each stream, or
+   * zero or less along with {@code disk} to disable staging.
+   * @param disk the most bytes to spill to disk for each stream.
+   * @param dir the directory for spill files, or {@code null} for the
+   * system default.
+   * @return This {@code ProxyTransfer}.
+   */
+  public synchronized ProxyTransfer<S,D> stage(
+      long memory, long disk, java.io.File dir) {
+    stageMemory = Math.max(memory, 0);
+    stageDisk = Math.max(disk, 0);
+    stageDir = dir;
+    return this;
+  }
+
+  /** Get the number of bytes staging buffers have spilled to disk. */
+  public synchronized long spilled() { return spilled; }
+
+  /**
+   * Get the memory budget account the transfer's pipelines are charged to,
+   * so that it gets a fair share of the global budget. See {@link
+   * MemoryBudget}.
+   */
+  public MemoryBudget.Account account() { return account; }
+
+  public synchronized int concurrency() { return concurrency; }
+
+  /**
+   * Set the number of resources which may be transferred at once. This may
+   * be changed while the transfer is running. Raising it starts pending
+   * resources immediately, and lowering it lets ongoing transfers finish
+   * before starting anything new. A value less than or equal to zero lifts
+   * the limit.
+   *
+   * @param concurrency the number of resources to transfer at once.
+   * @return This {@code ProxyTransfer}.
+   */
+  public synchronized ProxyTransfer<S,D> concurrency(int concurrency) {
+    this.concurrency = concurrency;
+    popTransfers();
+    return this;
+  }
+
+  public synchronized boolean random() {
+    if (random == null)
+      throw new IllegalStateException("No data has been transferred yet.");
+    return random;
+  }
+
   // Check if we're able to start a data transfer according to the configured
   // concurrency level.
   private synchronized boolean canStartDataTransfer() {
@@ -58,13 +397,16 @@ extends Transfer<S,D> {
 
   // The total number of tasks pending.
   private synchronized int pendingTasks() {
-    return queue.size() + transfers.size() + listings.size();
+    return queue.size() + transfers.size() + listings.size() +
+           batch.size() + batches.size();
   }
 
   // Check if the transfer is complete. If there are no more pending tasks,
   // declare the transfer to be complete.
   private synchronized void checkIfComplete() {
     if (pendingTasks() <= 0) {
+      if (error == null && !failed.isEmpty())
+        error = new RuntimeException("Destinations failed: "+failed());
       if (error != null)
         stop(error);
       else
@@ -72,16 +414,19 @@ extends Transfer<S,D> {
     }
   }
 
-  // Transfer a resource given its path, and return a bell that rings when the
-  // transfer begins.
-  private synchronized Bell transfer(final Path path) {
+  // Transfer a resource given its path and, if it came from a listing, its
+  // stat. Return a bell that rings when the transfer begins.
+  private synchronized Bell transfer(final Path path, Stat stat) {
     if (isDone()) {
       return Bell.rungBell();
     } if (!canStartDataTransfer()) {
-      return enqueueTransfer(path, false);
-    } try {
+      return enqueueTransfer(path, stat, false);
+    }
+    Trace.Span span = span(path.toString());
+    Trace.Event previous = (span == null) ? null : span.enter();
+    try {
       transferStarted(path);
-      return transfer0(path).new Promise() {
+      return transfer0(path, stat).new Promise() {
         public void fail(Throwable t) {
           error = t;
           transferEnded(path);
@@ -91,22 +436,44 @@ extends Transfer<S,D> {
       error = e;
       transferEnded(path);
       return new Bell(e);
+    } finally {
+      if (span != null) Trace.exit(previous);
     }
-  } private synchronized Bell transfer0(final Path path) {
+  }
+
+  // Begin an event for a path, or return null if not recording.
+  private synchronized Recording.Event record(String type, Path path) {
+    Recording.Event event = Recording.begin(type);
+    if (event != null)
+      event.set("path", path).set("attempt", attempt);
+    return event;
+  }
+
+  // Start a span in the trace, or return null if not tracing.
+  private synchronized Trace.Span span(String name) {
+    return (trace == null) ? null : trace.span(name);
+  } private synchronized Bell transfer0(final Path path, Stat known) {
     if (isDone())
       return Bell.rungBell();
 
-    final S src  = source.select(path);
-    final D dest = destination.select(path);
+    final S src = source.select(path);
+
+    // Stat the source to see what it is, unless the listing already told us
+    // everything we need. Directories are always stat'd for their contents.
+    Bell<Stat> stat = isComplete(known) ?
+      Bell.wrap(known) : listLatency.time(src.stat());
+    Recording.Event event = isComplete(known) ? null : record("listing", path);
+    if (event != null) event.commit(stat);
 
-    // Stat the source to see what it is.
-    return src.stat().new AsBell<Object>() {
+    return stat.new AsBell<Object>() {
       public Bell<Object> convert(Stat stat) {
         Bell b = Bell.rungBell();
-        if (stat.dir)
-          b = b.and(dest.mkdir()).and(transferList(path));
+        if (stat.dir) {
+          opened(path);
+          b = b.and(mkdir(path)).and(transferList(path, stat));
+        }
         if (stat.file)
-          b = b.and(transferData(path));
+          b = b.and(transferData(path, stat));
         else
           transferEnded(path);
         return b;
@@ -114,51 +481,461 @@ extends Transfer<S,D> {
     };
   }
 
+  // Check if a stat from a listing is enough to transfer a file from. Links
+  // are never, since listings describe the link rather than its target.
+  private static boolean isComplete(Stat stat) {
+    return stat != null && !stat.partial && stat.file && !stat.dir &&
+      stat.link == null;
+  }
+
   // If we are not yet able to start a transfer, put it in the transfer queue.
-  private synchronized Bell enqueueTransfer(Path path, boolean first) {
-    Pending pending = new Pending(path);
-    if (first)
-      queue.addFirst(pending);
-    else
-      queue.add(pending);
+  private synchronized Bell enqueueTransfer(
+      Path path, Stat stat, boolean first) {
+    Pending pending = new Pending(path, stat);
+    queue.add(pending, first);
     return pending.bell;
   }
 
   // Remove resource paths from the transfer queue and begin transferring them.
+  // Small files are gathered into batches instead, and a partial batch is sent
+  // once nothing more can be added to it.
   private synchronized void popTransfers() {
     while (canStartDataTransfer()) {
-      Pending pending = queue.poll();
-      if (pending == null)
+      if (batches.isEmpty() && !batch.isEmpty() &&
+          queue.size() == 0 && listings.isEmpty()) {
+        batches.add(batch);
+        batch = new ArrayList<Pending>();
+      } if (!batches.isEmpty()) {
+        transferBatch(batches.poll());
+        continue;
+      }
+
+      Pending pending = (Pending) queue.poll();
+      if (pending == null) {
         return;
-      transfer(pending.path).promise(pending.bell);
+      } if (batchable(pending)) {
+        batch.add(pending);
+        if (batch.size() >= batchSize) {
+          batches.add(batch);
+          batch = new ArrayList<Pending>();
+        }
+      } else {
+        transfer(pending.path, pending.stat).promise(pending.bell);
+      }
+    }
+  }
+
+  // Check if a pending file can go in a batch.
+  private synchronized boolean batchable(Pending pending) {
+    if (aggregate < 0 || Boolean.FALSE.equals(archives) || !replicas.isEmpty())
+      return false;
+    if (!isComplete(pending.stat) || pending.stat.size > aggregate)
+      return false;
+    return Tar.fits(TarTap.name(pending.path), pending.stat.size);
+  }
+
+  // Transfer a batch of small files as one archive. The transfer is keyed by
+  // the path of the first file. If the destination turns out not to support
+  // archives, the files are put back to be transferred individually.
+  private synchronized void transferBatch(final List<Pending> batch) {
+    final Path key = batch.get(0).path;
+    Sink<D> sink;
+
+    if (isDone()) {
+      return;
+    } try {
+      sink = destination.archiveSink();
+      archives = true;
+    } catch (UnsupportedOperationException e) {
+      archives = false;
+      for (Pending pending : batch)
+        queue.add(pending, true);
+      return;
+    }
+
+    transferStarted(key);
+    files.total += batch.size();
+    for (Pending pending : batch)
+      pending.bell.ring();
+
+    Trace.Span span = span("batch "+key);
+    Trace.Event previous = (span == null) ? null : span.enter();
+    try {
+      Tap<S> tap = new TarTap<S>(source, batch) {
+        protected void progress(long bytes) { moved(bytes); }
+      };
+      start(shaped(tap).attach(new Pipe() {
+        protected void finished(Throwable t) { batchEnded(key, batch, t); }
+      }).attach(sink));
+    } finally {
+      if (span != null) Trace.exit(previous);
     }
   }
 
+  // Called when a batch has ended. The whole transfer is stopped if it failed.
+  private synchronized void batchEnded(
+      Path key, List<Pending> batch, Throwable t) {
+    if (t != null) {
+      stop(t);
+    } else for (Pending pending : batch) {
+      fileCompleted(pending.path);
+    } transferEnded(key);
+  }
+
   // Transfer a resource once we know it's a data resource.
-  private synchronized Bell transferData(final Path path) {
-    return source.select(path).tap().attach(new Pipe() {
-      protected Bell start() throws Exception {
-        return super.start();
-      } protected Bell drain(Slice slice) throws Exception {
-        addProgress(slice.length());
-        return super.drain(slice);
-      } protected void finish(Throwable t) {
-        super.finish(t);
-        if (t != null)
-          stop(t);
+  private synchronized Bell transferData(final Path path, Stat stat) {
+    final Sink<D> sink = sink(path);
+    if (random == null)
+      random = sink.random();
+    files.total++;
+
+    Long resume = (offsets == null) ? null : offsets.get(path.toString());
+    if (resume != null && resume > 0 && sink.random() && replicas.isEmpty()) {
+      final long recorded = resume;
+      return destination.select(path).stat().new AsBell<Object>() {
+        public Bell<Object> convert(Stat dest) {
+          return transferFrom(path, Math.min(recorded, dest.size), sink);
+        } public Bell<Object> convert(Throwable t) {
+          return transferFrom(path, 0, sink);
+        }
+      };
+    }
+
+    int count = segmentCount(stat.size);
+    if (count > 1 && sink.random()) try {
+      return transferSegments(path, stat.size, count, sink);
+    } catch (UnsupportedOperationException e) {
+      // The source can't read ranges. Transfer it as one stream.
+    }
+
+    return transferFrom(path, 0, sink);
+  }
+
+  // Transfer a file as a single stream, starting at the given offset.
+  private synchronized Bell transferFrom(Path path, long offset, Sink<D> sink) {
+    Tap<S> tap = null;
+    if (offset > 0) try {
+      tap = source.select(path).tap(offset, -1);
+    } catch (UnsupportedOperationException e) {
+      offset = 0;
+    } if (tap == null) {
+      tap = source.select(path).tap();
+    }
+
+    Segments group = new Segments(path, 1);
+    if (group.event != null) group.event.set("offset", offset);
+    boolean record = offsets != null && replicas.isEmpty();
+    Pipe pipe = shaped(tap);
+    if (offset == 0 && checksum != null)
+      pipe = pipe.attach(group.digest = new DigestPipe(checksum));
+    return start(pipe.attach(segmentPipe(offset, group, record)).attach(sink));
+  }
+
+  // Get the number of segments to split a file of the given size into.
+  private synchronized int segmentCount(long size) {
+    if (segments <= 1 || size <= segmentSize)
+      return 1;
+    long count = (size+segmentSize-1) / segmentSize;
+    return (int) Math.min(count, segments);
+  }
+
+  // Transfer a file in count segments. The taps are all created before any of
+  // them are started, so that an unsupported range can be fallen back from.
+  private synchronized Bell transferSegments(
+      Path path, long size, int count, Sink<D> first) {
+    long length = (size+count-1) / count;
+    List<Tap<S>> taps = new ArrayList<Tap<S>>(count);
+    for (int i = 0; i < count; i++)
+      taps.add(source.select(path).tap(i*length, (i < count-1) ? length : -1));
+
+    Segments group = new Segments(path, count);
+    List<Bell<?>> bells = new ArrayList<Bell<?>>(count);
+    for (int i = 0; i < count; i++) {
+      Sink<D> sink = (i == 0) ? first : sink(path);
+      Pipe pipe = shaped(taps.get(i));
+      pipe = pipe.attach(segmentPipe(i*length, group, false));
+      bells.add(start(pipe.attach(sink)));
+    }
+    return Bell.all(bells);
+  }
+
+  // Note bytes moved from the source to the destinations.
+  private void moved(long bytes) {
+    addProgress(bytes);
+    bytesRead.add(bytes);
+    bytesWritten.add(bytes);
+  }
+
+  // Charge a pipeline to the transfer's memory budget account, and start it.
+  private Bell start(Pipe pipeline) {
+    for (Pipe p : pipeline.pipeline())
+      p.account(account);
+    return pipeline.tap().start();
+  }
+
+  // Attach a rate limiting pipe and a staging buffer to a tap, if they're
+  // enabled. Anything after these only sees data once it leaves the buffer.
+  private synchronized Pipe shaped(Tap<S> tap) {
+    Pipe pipe = tap;
+    if (!buckets.isEmpty())
+      pipe = pipe.attach(new ThrottlePipe(buckets));
+    if (stageMemory > 0 || stageDisk > 0) {
+      pipe = pipe.attach(new SpillPipe(stageMemory, stageDisk, stageDir) {
+        protected void spilled(long bytes) {
+          synchronized (ProxyTransfer.this) {
+            spilled += bytes;
+          }
+        }
+      });
+    } return pipe;
+  }
+
+  // A pipe which notes progress for a segment starting at the given offset,
+  // and gives slices with unspecified offsets their place in the file. If
+  // record is set, the offset written up to is recorded for resuming.
+  private Pipe segmentPipe(
+      final long start, final Segments group, final boolean record) {
+    final String key = group.path.toString();
+    return new Pipe() {
+      private long position = start;
+      // When each slice still draining was passed on, in order.
+      private final Queue<Long> times = new ArrayDeque<Long>();
+
+      protected Bell drain(Slice slice) throws Exception {
+        moved(slice.length());
+        if (group.event != null) group.moved(slice.length());
+        if (slice.offset() < 0)
+          slice = slice.offset(position);
+        position += slice.length();
+        synchronized (times) {
+          times.add(System.nanoTime());
+        } return super.drain(slice);
+      } protected void drained(long offset, long length) {
+        Long time;
+        synchronized (times) {
+          time = times.poll();
+        } if (time != null) {
+          sliceLatency.record(System.nanoTime()-time);
+        }
+        if (record)
+          offsets.put(key, offset+length);
+      } protected void failed(Throwable t) {
+        group.failed(t);
+      } protected void finished(Throwable t) {
+        // Every slice has been written by now, and the sink has finished.
+        if (record && t == null)
+          offsets.remove(key);
+        group.ended(t);
+      }
+    };
+  }
+
+  // The segments of a file being transferred. The file's transfer ends once
+  // every segment has ended, and its checksum, if any, has been verified. The
+  // whole transfer is stopped if any fails.
+  private class Segments {
+    final Path path;
+    int remaining;
+    boolean failed;
+    DigestPipe digest;
+    final long time = System.nanoTime();
+    final Recording.Event event;
+    long bytes;
+
+    Segments(Path path, int count) {
+      this.path = path;
+      this.remaining = count;
+      event = record("transfer.file", path);
+      if (event != null) event.set("segments", count);
+    }
+
+    synchronized void moved(long n) { bytes += n; }
+
+    // Fail the file as soon as a segment fails, rather than once it ends.
+    synchronized void failed(Throwable t) {
+      if (!failed) {
+        failed = true;
+        stop(t);
+      }
+    }
+
+    synchronized void ended(Throwable t) {
+      if (t != null)
+        failed(t);
+      if (--remaining != 0) {
+        return;
+      } if (!failed) {
+        fileLatency.record(System.nanoTime()-time);
+      } if (event != null) {
+        event.set("bytes", bytes).set("ok", !failed).commit();
+      } if (failed || digest == null || digest.value() == null) {
+        if (!failed)
+          fileCompleted(path);
         transferEnded(path);
+      } else {
+        verify(path, digest).new Promise() {
+          public void done() {
+            fileCompleted(path);
+          } public void fail(Throwable t) {
+            stop(t);
+          } public void always() {
+            transferEnded(path);
+          }
+        };
       }
-    }).attach(destination.select(path).sink()).tap().start();
+    }
   }
 
-  // Transfer directory listing.
-  private synchronized Bell transferList(final Path path) {
-    Emitter<String> emitter = source.select(path).list();
-    final Bell bell = new Bell();
+  // Record the checksum of a file, and compare it with the destination's if
+  // verification is enabled and the destination supports it.
+  private synchronized Bell verify(final Path path, final DigestPipe digest) {
+    final String sum = digest.value();
+    if (sums != null)
+      sums.put(path.toString(), sum);
+    if (!verify)
+      return Bell.rungBell();
+
+    Bell<String> bell;
+    try {
+      bell = destination.select(path).checksum(digest.algorithm());
+    } catch (UnsupportedOperationException e) {
+      return Bell.rungBell();
+    }
+
+    return bell.new As<Object>() {
+      public Object convert(String dest) throws Exception {
+        if (!sum.equalsIgnoreCase(dest)) throw new java.io.IOException(
+          "Checksum mismatch for "+path+": "+sum+" != "+dest);
+        return null;
+      }
+    };
+  }
+
+  // Get every destination, the primary first.
+  private synchronized List<D> targets() {
+    List<D> targets = new ArrayList<D>(replicas.size()+1);
+    targets.add(destination);
+    targets.addAll(replicas);
+    return targets;
+  }
+
+  // Make a directory on every destination which hasn't failed.
+  private synchronized Bell mkdir(Path path) {
+    if (replicas.isEmpty())
+      return destination.select(path).mkdir();
+
+    List<D> targets = targets();
+    List<Bell<?>> bells = new ArrayList<Bell<?>>();
+    for (int i = 0; i < targets.size(); i++) if (!failed.containsKey(i)) {
+      final int n = i;
+      final Bell bell = new Bell();
+      targets.get(i).select(path).mkdir().new Promise() {
+        public void done() {
+          bell.ring();
+        } public void fail(Throwable t) {
+          targetFailed(n, t);
+          bell.ring();
+        }
+      };
+      bells.add(bell);
+    } return Bell.all(bells);
+  }
+
+  // Get a sink for a file on every destination which hasn't failed.
+  private synchronized Sink<D> sink(Path path) {
+    if (replicas.isEmpty())
+      return destination.select(path).sink();
+
+    List<D> targets = targets();
+    List<Sink<D>> sinks = new ArrayList<Sink<D>>();
+    final List<Integer> index = new ArrayList<Integer>();
+    for (int i = 0; i < targets.size(); i++) if (!failed.containsKey(i)) try {
+      sinks.add(targets.get(i).select(path).sink());
+      index.add(i);
+    } catch (Exception e) {
+      targetFailed(i, e);
+    }
+
+    return new Tee<D>(sinks) {
+      protected void failed(int branch, Throwable t) {
+        targetFailed(index.get(branch), t);
+      }
+    };
+  }
+
+  // Drop a destination which has failed. If none are left, stop.
+  private synchronized void targetFailed(int index, Throwable t) {
+    if (failed.containsKey(index))
+      return;
+    failed.put(index, t);
+    if (failed.size() > replicas.size())
+      stop(t);
+  }
+
+  // Describe the destinations which have failed.
+  private synchronized String failed() {
+    List<D> targets = targets();
+    List<String> list = new ArrayList<String>();
+    for (Map.Entry<Integer,Throwable> e : failed.entrySet())
+      list.add(targets.get(e.getKey())+" ("+e.getValue().getMessage()+")");
+    return list.toString();
+  }
+
+  // Check if a path is covered by the checkpoint.
+  private synchronized boolean isCompleted(Path path) {
+    return checkpoint != null && checkpoint.contains(path);
+  }
+
+  // Called when a file has been transferred successfully.
+  private synchronized void fileCompleted(Path path) {
+    files.done++;
+    completed(path);
+  }
+
+  // Record a completed path, and count it against its directory.
+  private synchronized void completed(Path path) {
+    if (checkpoint != null && failed.isEmpty())
+      checkpoint.add(path);
+    if (!path.isRoot())
+      closed(path.up());
+  }
+
+  // Note that an entry in a directory has begun, or ended successfully. Once
+  // nothing remains, the directory is complete.
+  private synchronized void opened(Path dir) {
+    Integer n = open.get(dir);
+    open.put(dir, (n == null) ? 1 : n+1);
+  } private synchronized void closed(Path dir) {
+    Integer n = open.get(dir);
+    if (n == null) {
+      return;
+    } if (n > 1) {
+      open.put(dir, n-1);
+    } else {
+      open.remove(dir);
+      completed(dir);
+    }
+  }
+
+  // Transfer directory listing. If the directory's stat came with its
+  // contents, those are used rather than listing it again, and each child's
+  // stat is passed along to its transfer.
+  private synchronized Bell transferList(final Path path, Stat stat) {
     listingStarted(path);
+    if (stat.files != null) {
+      for (Stat f : stat.files)
+        if (f != null) listed(path, f.name, f);
+      closed(path);
+      listingEnded(path);
+      return Bell.rungBell();
+    }
+
+    Emitter<String> emitter = source.select(path).list();
     emitter.new ForEach() {
       public void each(String name) {
-        enqueueTransfer(path.appendLiteral(name), true);
+        listed(path, name, null);
+      } public void done() {
+        closed(path);
       } public void always() {
         listingEnded(path);
       }
@@ -166,11 +943,23 @@ extends Transfer<S,D> {
     return Bell.rungBell();
   }
 
+  // Enqueue an entry found in a listing, unless it's already been completed.
+  private synchronized void listed(Path dir, String name, Stat stat) {
+    if (name == null || name.equals(".") || name.equals(".."))
+      return;
+    Path child = dir.appendLiteral(name);
+    if (isCompleted(child))
+      return;
+    opened(dir);
+    enqueueTransfer(child, stat, true);
+  }
+
   // Called whenever a data transfer starts or completes.
   private synchronized void transferStarted(Path path) {
     transfers.add(path);
   } private synchronized void transferEnded(Path path) {
     transfers.remove(path);
+    queue.ended(path);
     popTransfers();
     checkIfComplete();
   }
@@ -236,6 +236,64 @@ public class Resource<S extends Session<S,R>, R extends Resource<S,R>> {
    */
   public Tap<R> tap() { throw unsupported("tap"); }
 
+  /**
+   * Return a {@code Tap} that will emit part of the data of this {@code
+   * Resource}, starting {@code offset} bytes in and ending after {@code
+   * length} bytes or at the end of the data, whichever comes first. {@code
+   * Slice}s emitted by the {@code Tap} should have offsets relative to the
+   * start of this {@code Resource}, though they may be left unspecified.
+   * <p/>
+   * Implementations should allow several ranged {@code Tap}s on the same
+   * {@code Resource} to run in parallel, e.g., by opening a separate
+   * connection for each, so that large resources may be transferred in
+   * segments. The default implementation only supports the whole {@code
+   * Resource}, and defers to {@link #tap()}.
+   *
+   * @param offset the byte offset to start reading at.
+   * @param length the number of bytes to read, or a negative number to read
+   * to the end of the data.
+   * @return A {@code Tap} which emits the given range of data.
+   * @throws UnsupportedOperationException if this {@code Resource} does not
+   * support reading the given range.
+   */
+  public Tap<R> tap(long offset, long length) {
+    if (offset == 0 && length < 0)
+      return tap();
+    throw unsupported("ranged tap");
+  }
+
+  /**
+   * Return a {@code Sink} that will expand a tar archive beneath this {@code
+   * Resource}, creating each file the archive contains as it arrives. This is
+   * used to send many small files through a single pipeline. Implementations
+   * which can do this more efficiently than writing each file through its own
+   * {@code Sink} may override this. The default implementation does not
+   * support archives; {@link stork.feather.util.UntarSink} can be returned by
+   * implementations which support {@link #sink()} and {@link #mkdir()}.
+   *
+   * @return A {@code Sink} which expands archives beneath this {@code
+   * Resource}.
+   * @throws UnsupportedOperationException if this {@code Resource} does not
+   * support expanding archives.
+   */
+  public Sink<R> archiveSink() { throw unsupported("archive sink"); }
+
+  /**
+   * Get a checksum of the data of this {@code Resource}, as computed by the
+   * storage system. This is used to check data written through a {@code
+   * Sink} against a checksum computed while it was being transferred. See
+   * {@link stork.feather.util.Digest} for algorithm names.
+   *
+   * @param algorithm the name of the checksum algorithm.
+   * @return (via bell) The checksum in lower case hexadecimal.
+   * @throws Exception (via bell) if computing the checksum fails.
+   * @throws UnsupportedOperationException if this {@code Resource} cannot
+   * compute checksums with {@code algorithm}.
+   */
+  public Bell<String> checksum(String algorithm) {
+    throw unsupported("checksum");
+  }
+
   private UnsupportedOperationException unsupported(String op) {
     throw new UnsupportedOperationException(
       "The "+op+" operation is unsupported.");
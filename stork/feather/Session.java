@@ -44,9 +44,17 @@ public abstract class Session<S extends Session<S,R>, R extends Resource<S,R>> {
   // If we've already started initializing, this will be non-null.
   private volatile Bell initializeBell;
 
+  // Whether initialization has been attempted, for counting sessions.
+  private boolean opened = false;
+
   // Rung on close. Avoid letting this leak out.
   private final Bell<S> onClose = new Bell<S>() {
-    public void always() { Session.this.cleanup(); }
+    public void always() {
+      if (opened) metric("sessions_closed_total").increment();
+      Recording.Event event = record("session.close");
+      Session.this.cleanup();
+      if (event != null) event.commit();
+    }
   };
 
   /**
@@ -106,14 +114,36 @@ public abstract class Session<S extends Session<S,R>, R extends Resource<S,R>> {
    * {@code Session} is closed.
    */
   final synchronized Bell<S> mediatedInitialize() {
-    if (initializeBell != null) {
+    if (initializeBell != null)
       return initializeBell;
-    } try {
+    Recording.Event event = record("session.open");
+    try {
+      opened = true;
+      metric("sessions_opened_total").increment();
       Bell ib = initialize();
       initializeBell = (ib != null) ? ib : Bell.rungBell();
     } catch (Exception e) {
       initializeBell = new Bell<S>(e);
-    } return initializeBell.as(this);
+    } Metrics.global().distribution(
+      "session_initialize_nanoseconds", "scheme", scheme()
+    ).time(initializeBell);
+    if (event != null) event.commit(initializeBell);
+    return initializeBell.as(this);
+  }
+
+  // Get a counter for this session's scheme.
+  private Metrics.Counter metric(String name) {
+    return Metrics.global().counter(name, "scheme", scheme());
+  }
+
+  private String scheme() { return String.valueOf(uri.scheme()); }
+
+  // Begin an event for this session's module and host, if recording.
+  private Recording.Event record(String type) {
+    Recording.Event event = Recording.begin(type);
+    if (event != null)
+      event.set("scheme", scheme()).set("host", uri.host());
+    return event;
   }
 
   /**
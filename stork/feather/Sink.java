@@ -41,6 +41,17 @@ public abstract class Sink<D extends Resource> extends Pipe {
     return Bell.rungBell();
   }
 
+  /**
+   * Check if this {@code Sink} writes {@code Slice}s at their offsets, so that
+   * several {@code Sink}s for the same {@code Resource} may be fed different
+   * ranges of its data in parallel. {@code Slice}s with unspecified offsets
+   * are written after the previous {@code Slice}. The return value of this
+   * method should remain constant across calls.
+   *
+   * @return {@code true} if positional writes are supported.
+   */
+  public boolean random() { return false; }
+
   /**
    * Drain a {@code Slice} to the endpoint storage system. This method returns
    * as soon as possible, with the actual I/O operation taking place
@@ -49,6 +60,10 @@ public abstract class Sink<D extends Resource> extends Pipe {
    * If the {@code Slice} cannot be drained immeditately due to congestion,
    * {@code pause()} should be called, and {@code resume()} should be called
    * when the channel is free to transmit data again.
+   * <p/>
+   * The {@code Sink} takes ownership of {@code slice}, and must release it
+   * once it has been written, or pass it to something that will. If this
+   * method throws, the caller retains ownership.
    *
    * @param slice a {@code Slice} being drained through the pipeline.
    * @throws IllegalStateException if this method is called when the pipeline
@@ -57,4 +72,17 @@ public abstract class Sink<D extends Resource> extends Pipe {
   protected abstract Bell drain(Slice slice) throws Exception;
 
   protected abstract void finish(Throwable t);
+
+  /**
+   * Get a {@code Bell} which rings once this {@code Sink} has written
+   * everything drained to it and finished. By default, a {@code Sink} is
+   * taken to have written each {@code Slice} once the {@code Bell} returned
+   * by {@link #drain(Slice)} rings, and to have finished once {@link
+   * #finish(Throwable)} returns, so this is only asked for after that and
+   * rings right away. {@code Sink}s which are still writing by then should
+   * override this.
+   *
+   * @return A {@code Bell} which rings when the {@code Sink} has finished.
+   */
+  public Bell onFinish() { return Bell.rungBell(); }
 }
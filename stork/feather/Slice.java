@@ -10,6 +10,20 @@ import io.netty.util.*;
  * by a {@link Tap}, and is the fundamental unit of data transfer in a proxy
  * pipeline. Slices encapsulate a byte buffer and optionally an offset
  * indicating the location of the data within the originating resource.
+ * <p/>
+ * The buffer wrapped by a {@code Slice} is reference counted, and whoever
+ * holds a reference to it is responsible for releasing it. Passing a {@code
+ * Slice} to {@link Pipe#drain(Slice)} passes that reference along with it: a
+ * {@code Pipe} must either pass the {@code Slice} downstream or call {@link
+ * #release()}, and a {@code Sink} must release the {@code Slice} once it has
+ * finished writing it (or hand it to something that will, such as a Netty
+ * channel). If {@code drain()} throws, the caller still owns the {@code
+ * Slice}. {@code Slice}s created through {@link #offset(long)} share the
+ * reference of the {@code Slice} they were created from.
+ * <p/>
+ * {@code Tap}s should allocate their buffers from {@link #allocator()}, which
+ * pools direct memory so that buffers can be reused across chunks and
+ * transfers instead of being left to the garbage collector.
  */
 public class Slice {
   private final long offset;
@@ -20,6 +34,47 @@ public class Slice {
    */
   public static final Slice EMPTY = new Slice(Unpooled.EMPTY_BUFFER, -1);
 
+  /** The allocator used for buffers that flow through pipelines. */
+  private static final ByteBufAllocator allocator =
+    new PooledByteBufAllocator(true);
+
+  /**
+   * Get the shared allocator {@code Tap}s should use to allocate buffers for
+   * the {@code Slice}s they emit. Buffers allocated from it are pooled and
+   * prefer direct memory, and must be released when they are no longer
+   * needed.
+   *
+   * @return The shared pooled {@code ByteBufAllocator}.
+   */
+  public static ByteBufAllocator allocator() {
+    return allocator;
+  }
+
+  /**
+   * Allocate an empty, writable buffer with the given capacity from the
+   * shared allocator. The caller owns the returned buffer.
+   *
+   * @param capacity the capacity of the buffer in bytes.
+   * @return A pooled direct {@code ByteBuf}.
+   */
+  public static ByteBuf allocate(int capacity) {
+    return allocator.directBuffer(capacity, capacity);
+  }
+
+  /**
+   * Enable or disable leak detection for {@code Slice} buffers. When enabled,
+   * every buffer is tracked, and any buffer that is garbage collected without
+   * having been released is reported along with a record of where it was
+   * accessed. This is expensive and intended for debugging only.
+   *
+   * @param enabled whether or not to track every buffer.
+   */
+  public static void leakDetection(boolean enabled) {
+    ResourceLeakDetector.setLevel(enabled ?
+      ResourceLeakDetector.Level.PARANOID :
+      ResourceLeakDetector.Level.SIMPLE);
+  }
+
   /**
    * Wrap a {@code byte[]} in a {@code Slice} with an unspecified offset.
    *
@@ -149,7 +204,10 @@ public class Slice {
    * @return The data as a byte array.
    */
   public final byte[] asBytes() {
-    return buffer.hasArray() ? buffer.array() : asBytes(new byte[length()]);
+    if (buffer.hasArray() && buffer.arrayOffset() == 0 &&
+        buffer.readerIndex() == 0 && buffer.array().length == length())
+      return buffer.array();
+    return asBytes(new byte[length()]);
   }
 
   /**
@@ -161,10 +219,34 @@ public class Slice {
    * @return The {@code byte[]} passed in as {@code array}.
    */
   public final byte[] asBytes(byte[] array) {
-    buffer.getBytes(0, array);
+    int len = Math.min(array.length, length());
+    buffer.getBytes(buffer.readerIndex(), array, 0, len);
     return array;
   }
 
+  /**
+   * Take an additional reference to the buffer wrapped by this {@code Slice}.
+   * Each call must be balanced by a call to {@link #release()}.
+   *
+   * @return This {@code Slice}.
+   */
+  public Slice retain() {
+    buffer.retain();
+    return this;
+  }
+
+  /**
+   * Give up a reference to the buffer wrapped by this {@code Slice}. Once the
+   * last reference is released, the buffer is returned to its pool and this
+   * {@code Slice} must not be used again.
+   *
+   * @return {@code true} if the buffer was deallocated as a result of this
+   * call; {@code false} otherwise.
+   */
+  public boolean release() {
+    return buffer.release();
+  }
+
   /**
    * Check if a {@code Slice} is empty.
    *
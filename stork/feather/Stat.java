@@ -27,6 +27,11 @@ public class Stat {
   public String  perm;
   /** An array of subresources, if known. */
   public Stat[]  files;
+  /**
+   * Whether this was guessed from a listing which left out the type or size,
+   * in which case the resource should be stat'd before relying on them.
+   */
+  public transient boolean partial;
 
   private transient long total_size = -1;
   private transient long total_num  =  0;
@@ -125,8 +130,10 @@ public class Stat {
       files = null;
     } else {
       Stat[] stats = new Stat[names.length];
-      for (int i = 0; i < stats.length; i++)
+      for (int i = 0; i < stats.length; i++) {
         stats[i] = new Stat(names[i]);
+        stats[i].partial = true;
+      }
       files = stats;
       total_size = -1;
       total_num  =  0;
@@ -51,6 +51,11 @@ public abstract class Tap<S extends Resource> extends Pipe {
    */
   protected abstract Bell start(Bell bell) throws Exception;
 
+  /**
+   * Drain a {@code Slice} to the attached pipeline. Unlike {@link
+   * Pipe#drain(Slice)}, this never throws, and always takes ownership of
+   * {@code slice}, releasing it if it cannot be drained.
+   */
   protected Bell drain(Slice slice) {
     try {
       Bell bell = super.drain(slice);
@@ -58,6 +63,7 @@ public abstract class Tap<S extends Resource> extends Pipe {
         bell = Bell.rungBell();
       return bell;
     } catch (Exception e) {
+      slice.release();
       return new Bell(e);
     }
   }
@@ -92,8 +98,8 @@ public abstract class Tap<S extends Resource> extends Pipe {
       } public void write(byte[] bytes) {
         write(bytes, 0, bytes.length);
       } public void write(byte[] bytes, int off, int len) {
-        if (off != 0 || len != bytes.length)
-          bytes = java.util.Arrays.copyOfRange(bytes, off, len-off);
+        // Copy, since the caller may reuse the array once this returns.
+        bytes = java.util.Arrays.copyOfRange(bytes, off, off+len);
         drain(new Slice(bytes)).sync();
       }
     };
@@ -1,6 +1,7 @@
 package stork.feather;
 
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 import stork.feather.util.*;
 
@@ -27,6 +28,13 @@ public abstract class Transfer<S extends Resource, D extends Resource> {
   private Progress progress = new Progress();
   private Throughput throughput = new Throughput();
 
+  // Chunks are counted without locking, and info is refreshed from the
+  // counts at most every REFRESH nanoseconds, and when the transfer stops.
+  private static final long REFRESH = (long) 1E8;
+  private final StripedLong chunks = new StripedLong();
+  private volatile long chunk;
+  private final AtomicLong refreshAt = new AtomicLong(System.nanoTime());
+
   private boolean startCalled = false;
   private final Bell onStart = new Bell() {
     public void done() {
@@ -95,6 +103,7 @@ public abstract class Transfer<S extends Resource, D extends Resource> {
    * @return This {@code Transfer}.
    */
   public final Transfer<S,D> stop() {
+    refresh();
     onStop.ring();
     return this;
   }
@@ -108,6 +117,7 @@ public abstract class Transfer<S extends Resource, D extends Resource> {
    * @return This {@code Transfer}.
    */
   public final Transfer<S,D> stop(Throwable reason) {
+    refresh();
     onStop.ring(reason);
     return this;
   }
@@ -161,15 +171,39 @@ public abstract class Transfer<S extends Resource, D extends Resource> {
   public final boolean isDone() { return onStop.isDone(); }
 
   /**
-   * Used by subclasses to note progress.
+   * Used by subclasses to note progress. Each call is counted as one chunk
+   * in {@link #info}. This may be called from many threads at once without
+   * them contending, and {@link #info} is only refreshed periodically.
    */
   protected final Transfer<S,D> addProgress(long size) {
     progress.add(size);
     throughput.update(size);
-    info.update(timer, progress, throughput);
+    chunks.add(1);
+    chunk = size;
+
+    long now = System.nanoTime(), at = refreshAt.get();
+    if (now-at >= 0 && refreshAt.compareAndSet(at, now+REFRESH))
+      refresh();
+    return this;
+  }
+
+  /**
+   * Used by subclasses to add {@code size} bytes to the total expected to be
+   * transferred, as it becomes known.
+   */
+  protected final Transfer<S,D> addTotal(long size) {
+    progress.add(0, size);
     return this;
   }
 
+  // Refresh info from the current counts.
+  private void refresh() {
+    synchronized (info) {
+      info.chunks(chunk, chunks.sum());
+      info.update(timer, progress, throughput);
+    }
+  }
+
   /**
    * Check if the pipeline is capable of draining {@code Slice}s in arbitrary
    * order. The return value of this method should remain constant across
@@ -0,0 +1,56 @@
+package stork.feather.util;
+
+import java.util.concurrent.*;
+
+import stork.feather.*;
+
+/**
+ * A record of which files in a transfer have been completed, so that a
+ * retried transfer can skip them. Paths are relative to the root of the
+ * transfer. Once everything in a directory has been completed, the directory
+ * is recorded in place of its contents, which keeps the record small for
+ * large trees.
+ * <p/>
+ * A {@code Checkpoint} is safe for concurrent use, and may be marshalled while
+ * it is being updated.
+ */
+public class Checkpoint {
+  private ConcurrentSkipListSet<String> paths =
+    new ConcurrentSkipListSet<String>();
+
+  /**
+   * Check if {@code path}, or a directory containing it, has been completed.
+   *
+   * @param path the path to check.
+   * @return {@code true} if {@code path} has been completed.
+   */
+  public boolean contains(Path path) {
+    for (Path p = path; ; p = p.up()) {
+      if (paths.contains(p.toString()))
+        return true;
+      if (p.isRoot())
+        return false;
+    }
+  }
+
+  /**
+   * Record that {@code path} has been completed. If {@code path} is a
+   * directory, anything recorded beneath it is dropped.
+   *
+   * @param path the path which has been completed.
+   */
+  public void add(Path path) {
+    String s = path.toString();
+    String prefix = s.endsWith("/") ? s : s+"/";
+    paths.subSet(prefix, prefix+Character.MAX_VALUE).clear();
+    paths.add(s);
+  }
+
+  /** Get the number of paths recorded. */
+  public int size() { return paths.size(); }
+
+  /** Forget everything that has been recorded. */
+  public void clear() { paths.clear(); }
+
+  public String toString() { return paths.toString(); }
+}
@@ -0,0 +1,196 @@
+package stork.feather.util;
+
+import java.nio.*;
+import java.security.*;
+import java.util.zip.*;
+
+import io.netty.buffer.*;
+
+/**
+ * An incrementally computed checksum or message digest. The supported
+ * algorithms are {@code md5}, {@code sha1}, {@code sha256}, {@code crc32},
+ * {@code crc32c}, and {@code adler32}. Names are case-insensitive, and dashes
+ * are ignored, so {@code SHA-256} also works.
+ * <p/>
+ * A {@code Digest} is not safe for concurrent use, and data must be given to
+ * it in order.
+ */
+public abstract class Digest {
+  /** The normalized name of the algorithm. */
+  public final String algorithm;
+
+  private Digest(String algorithm) {
+    this.algorithm = algorithm;
+  }
+
+  /**
+   * Create a {@code Digest} for the named algorithm.
+   *
+   * @param algorithm the name of the algorithm.
+   * @return A new {@code Digest}.
+   * @throws IllegalArgumentException if the algorithm is not supported.
+   */
+  public static Digest create(String algorithm) {
+    String name = normalize(algorithm);
+    try {
+      if (name.equals("md5"))
+        return new Message(name, MessageDigest.getInstance("MD5"));
+      if (name.equals("sha1"))
+        return new Message(name, MessageDigest.getInstance("SHA-1"));
+      if (name.equals("sha256"))
+        return new Message(name, MessageDigest.getInstance("SHA-256"));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalArgumentException(e);
+    }
+    if (name.equals("crc32"))
+      return new Sum(name, new CRC32());
+    if (name.equals("crc32c"))
+      return new Sum(name, new CRC32C());
+    if (name.equals("adler32"))
+      return new Sum(name, new Adler32());
+    throw new IllegalArgumentException("Unsupported checksum: "+algorithm);
+  }
+
+  /**
+   * Normalize the name of an algorithm.
+   *
+   * @param algorithm the name of an algorithm.
+   * @return The name in lower case with dashes removed.
+   */
+  public static String normalize(String algorithm) {
+    return algorithm.toLowerCase().replace("-", "");
+  }
+
+  /**
+   * Add the readable bytes of {@code buffer} to the digest, without changing
+   * its reader index. Composite buffers are read a component at a time, so
+   * nothing is copied except where an algorithm needs an array.
+   *
+   * @param buffer the data to add.
+   */
+  public void update(ByteBuf buffer) {
+    for (ByteBuffer b : buffer.nioBuffers())
+      update(b);
+  }
+
+  /**
+   * Add the remaining bytes of {@code buffer} to the digest. The buffer's
+   * position is advanced to its limit.
+   *
+   * @param buffer the data to add.
+   */
+  public abstract void update(ByteBuffer buffer);
+
+  /**
+   * Add bytes from an array to the digest.
+   */
+  public abstract void update(byte[] array, int offset, int length);
+
+  /**
+   * Finish the digest and get its value. The {@code Digest} is reset.
+   *
+   * @return The value of the digest.
+   */
+  public abstract byte[] value();
+
+  /**
+   * Finish the digest and get its value as a lower case hexadecimal string.
+   * The {@code Digest} is reset.
+   *
+   * @return The value of the digest in hexadecimal.
+   */
+  public String hex() {
+    StringBuilder sb = new StringBuilder();
+    for (byte b : value())
+      sb.append(Character.forDigit((b >> 4) & 0xf, 16))
+        .append(Character.forDigit(b & 0xf, 16));
+    return sb.toString();
+  }
+
+  // A digest computed by a MessageDigest, which can read any ByteBuffer.
+  private static class Message extends Digest {
+    private final MessageDigest md;
+
+    Message(String algorithm, MessageDigest md) {
+      super(algorithm);
+      this.md = md;
+    }
+
+    public void update(ByteBuffer buffer) { md.update(buffer); }
+
+    public void update(byte[] array, int offset, int length) {
+      md.update(array, offset, length);
+    }
+
+    public byte[] value() { return md.digest(); }
+  }
+
+  // A 32-bit checksum. These only take arrays, so direct buffers are copied
+  // through a small scratch array.
+  private static class Sum extends Digest {
+    private final Checksum sum;
+    private byte[] scratch;
+
+    Sum(String algorithm, Checksum sum) {
+      super(algorithm);
+      this.sum = sum;
+    }
+
+    public void update(ByteBuffer buffer) {
+      if (buffer.hasArray()) {
+        int off = buffer.arrayOffset()+buffer.position();
+        sum.update(buffer.array(), off, buffer.remaining());
+        buffer.position(buffer.limit());
+        return;
+      } if (scratch == null) {
+        scratch = new byte[8192];
+      } while (buffer.hasRemaining()) {
+        int n = Math.min(scratch.length, buffer.remaining());
+        buffer.get(scratch, 0, n);
+        sum.update(scratch, 0, n);
+      }
+    }
+
+    public void update(byte[] array, int offset, int length) {
+      sum.update(array, offset, length);
+    }
+
+    public byte[] value() {
+      long v = sum.getValue();
+      sum.reset();
+      return new byte[] {
+        (byte) (v >> 24), (byte) (v >> 16), (byte) (v >> 8), (byte) v
+      };
+    }
+  }
+
+  // CRC-32C (Castagnoli), which the platform doesn't provide before Java 9.
+  private static class CRC32C implements Checksum {
+    private static final int[] TABLE = new int[256];
+    private int crc = 0xffffffff;
+
+    static {
+      for (int i = 0; i < 256; i++) {
+        int c = i;
+        for (int k = 0; k < 8; k++)
+          c = ((c & 1) != 0) ? (c >>> 1) ^ 0x82f63b78 : c >>> 1;
+        TABLE[i] = c;
+      }
+    }
+
+    public void update(int b) {
+      crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xff];
+    }
+
+    public void update(byte[] b, int off, int len) {
+      int c = crc;
+      for (int i = off; i < off+len; i++)
+        c = (c >>> 8) ^ TABLE[(c ^ b[i]) & 0xff];
+      crc = c;
+    }
+
+    public long getValue() { return ~crc & 0xffffffffL; }
+
+    public void reset() { crc = 0xffffffff; }
+  }
+}
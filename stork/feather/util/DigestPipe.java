@@ -0,0 +1,56 @@
+package stork.feather.util;
+
+import stork.feather.*;
+
+/**
+ * A {@code Pipe} which computes a {@link Digest} of the data flowing through
+ * it, without copying or holding up the data. Each {@code Slice} is added to
+ * the digest as it passes, and the digest is finished once the upstream
+ * {@code Tap} finishes successfully.
+ * <p/>
+ * Data must arrive in order, starting at the beginning of the file. {@code
+ * Slice}s with offsets are checked against the position expected. If data
+ * arrives out of order, the digest is abandoned, and {@link #value()} returns
+ * {@code null}.
+ */
+public class DigestPipe extends Pipe {
+  private final Digest digest;
+  private long position = 0;
+  private boolean ordered = true;
+  private String value;
+
+  /**
+   * Create a {@code DigestPipe} which computes a digest with the named
+   * algorithm. See {@link Digest#create(String)}.
+   *
+   * @param algorithm the name of the algorithm.
+   * @throws IllegalArgumentException if the algorithm is not supported.
+   */
+  public DigestPipe(String algorithm) {
+    digest = Digest.create(algorithm);
+  }
+
+  /** Get the normalized name of the algorithm. */
+  public String algorithm() { return digest.algorithm; }
+
+  /**
+   * Get the digest of the data in hexadecimal, or {@code null} if the data
+   * has not finished successfully or arrived out of order.
+   */
+  public synchronized String value() { return value; }
+
+  protected synchronized Bell drain(Slice slice) throws Exception {
+    if (ordered && slice.offset() >= 0 && slice.offset() != position)
+      ordered = false;
+    if (ordered)
+      digest.update(slice.asByteBuf());
+    position += slice.length();
+    return super.drain(slice);
+  }
+
+  protected synchronized void finish(Throwable t) {
+    if (t == null && ordered)
+      value = digest.hex();
+    super.finish(t);
+  }
+}
@@ -1,55 +1,196 @@
 package stork.feather.util;
 
-import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 /**
- * A dispatch loop used internally. The dispatch loop maintains a timer thread
- * that will be destroyed when there are no dispatched tasks.
+ * A dispatch loop used internally. Tasks are executed by a work-stealing pool
+ * sized to the number of available processors (or a configured thread count),
+ * and delayed tasks are held by a separate timer thread until they are due, at
+ * which point they are handed off to the pool.
+ * <p/>
+ * Tasks dispatched through a {@code Dispatcher} may run concurrently with one
+ * another. Callers that require ordering between tasks must either dispatch
+ * them as a single task or chain them through {@code Bell}s.
+ * <p/>
+ * Subclasses may override {@link #execute(Runnable)} and {@link
+ * #schedule(Runnable, long)} to plug in alternative execution strategies
+ * while retaining the bookkeeping performed by this class.
  */
 public class Dispatcher {
-  private String name;
-  private long count;
-  private Timer timer;
+  private final String name;
+  private final int threads;
+  private volatile ForkJoinPool pool;
+  private ScheduledThreadPoolExecutor timer;
+
+  // Counters. Latency is measured from dispatch (or due time) to execution.
+  private final AtomicLong queued = new AtomicLong();
+  private final AtomicLong delayed = new AtomicLong();
+  private final AtomicLong completed = new AtomicLong();
+  private final AtomicLong latency = new AtomicLong();
+  private final AtomicLong maxLatency = new AtomicLong();
 
   /** Create an unnamed {@code Dispatcher}. */
   public Dispatcher() { this(null); }
 
   /** Create a {@code Dispatcher} with the given name. */
-  public Dispatcher(String name) { this.name = name; }
+  public Dispatcher(String name) { this(name, 0); }
+
+  /**
+   * Create a {@code Dispatcher} with the given name and thread count. If
+   * {@code threads} is less than one, the number of available processors is
+   * used.
+   */
+  public Dispatcher(String name, int threads) {
+    this.name = (name == null) ? "Dispatcher" : name;
+    this.threads = (threads > 0) ?
+      threads : Runtime.getRuntime().availableProcessors();
+  }
+
+  /** Get the name of this {@code Dispatcher}. */
+  public String name() { return name; }
+
+  /** Get the number of worker threads used by this {@code Dispatcher}. */
+  public int threads() { return threads; }
+
+  // Lazily create the worker pool. Only creating it takes the lock, so
+  // dispatching stays lock-free.
+  private ForkJoinPool pool() {
+    ForkJoinPool p = pool;
+    if (p != null)
+      return p;
+    synchronized (this) {
+      if (pool == null) pool = new ForkJoinPool(
+        threads, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+          public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+            ForkJoinWorkerThread t = new ForkJoinWorkerThread(pool) { };
+            t.setName(name+" "+t.getPoolIndex());
+            return t;
+          }
+        }, null, true);
+      return pool;
+    }
+  }
+
+  // Lazily create the timer thread for delayed tasks.
+  private synchronized ScheduledThreadPoolExecutor timer() {
+    if (timer == null) {
+      timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, name+" Timer");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+      timer.setRemoveOnCancelPolicy(true);
+    } return timer;
+  }
 
-  // Wrap a runnable for safety.
-  private TimerTask wrap(final Runnable r) {
-    return new TimerTask() {
+  // Wrap a runnable for safety and bookkeeping.
+  private Runnable wrap(final Runnable r) {
+    final long time = System.nanoTime();
+    queued.incrementAndGet();
+    return new Runnable() {
       public void run() {
+        long d = System.nanoTime()-time;
+        queued.decrementAndGet();
+        latency.addAndGet(d);
+        for (long m = maxLatency.get(); d > m; m = maxLatency.get())
+          if (maxLatency.compareAndSet(m, d)) break;
         try {
           r.run();
         } catch (Exception e) {
           // Ignore.
         } finally {
-          dispatchFinished();
+          completed.incrementAndGet();
         }
       }
     };
   }
 
   /** Schedule {@code runnable} to be executed as soon as possible. */
-  public synchronized void dispatch(final Runnable runnable) {
-    dispatch(runnable, 0);
+  public void dispatch(Runnable runnable) {
+    execute(wrap(runnable));
   }
 
-  /** Schedule {@code runnable} to be executed after a delay. */
-  public synchronized void dispatch(Runnable runnable, double delay) {
-    if (timer == null)
-      timer = new Timer(name == null ? "Dispatcher" : name);
-    timer.schedule(wrap(runnable), (long)(delay*1E3));
-    count++;
+  /** Schedule {@code runnable} to be executed after a delay in seconds. */
+  public void dispatch(final Runnable runnable, double delay) {
+    long ms = (long) (delay*1E3);
+    if (ms <= 0) {
+      dispatch(runnable);
+    } else {
+      delayed.incrementAndGet();
+      schedule(new Runnable() {
+        public void run() {
+          delayed.decrementAndGet();
+          dispatch(runnable);
+        }
+      }, ms);
+    }
   }
 
-  /** Called when a dispatch has completed. */
-  private synchronized void dispatchFinished() {
-    if (--count == 0) {
-      timer.cancel();
-      timer = null;
-    }
+  /**
+   * Execute a wrapped task on the worker pool. Subclasses may override this
+   * to change how tasks are executed.
+   *
+   * @param task the task to execute.
+   */
+  protected void execute(Runnable task) {
+    pool().execute(task);
+  }
+
+  /**
+   * Hold {@code task} until {@code delay} milliseconds have passed, then run
+   * it. The task should be lightweight, as it runs on the timer thread.
+   * Subclasses may override this to change how delayed tasks are held.
+   *
+   * @param task the task to run once the delay has passed.
+   * @param delay the delay in milliseconds.
+   */
+  protected void schedule(Runnable task, long delay) {
+    timer().schedule(task, delay, TimeUnit.MILLISECONDS);
+  }
+
+  /** Get the number of tasks waiting to be executed. */
+  public long queueDepth() { return queued.get(); }
+
+  /** Get the number of delayed tasks which are not yet due. */
+  public long delayedTasks() { return delayed.get(); }
+
+  /** Get the number of tasks which have been executed. */
+  public long completedTasks() { return completed.get(); }
+
+  /**
+   * Get the average time in milliseconds between a task becoming runnable and
+   * beginning execution.
+   */
+  public double averageLatency() {
+    long c = completed.get();
+    return (c <= 0) ? 0 : latency.get()/1E6/c;
+  }
+
+  /**
+   * Get the longest time in milliseconds between a task becoming runnable and
+   * beginning execution.
+   */
+  public double maxLatency() {
+    return maxLatency.get()/1E6;
+  }
+
+  /**
+   * Shut down this {@code Dispatcher}. Tasks which have already been
+   * dispatched will still be executed, but delayed tasks which are not yet
+   * due will be discarded.
+   */
+  public synchronized void shutdown() {
+    if (timer != null)
+      timer.shutdownNow();
+    if (pool != null)
+      pool.shutdown();
+  }
+
+  public String toString() {
+    return name+" (threads: "+threads+", queued: "+queueDepth()+
+      ", delayed: "+delayedTasks()+")";
   }
 }
@@ -0,0 +1,137 @@
+package stork.feather.util;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * A histogram of non-negative values, such as latencies in nanoseconds,
+ * which is cheap enough to record into from the data path. Values are
+ * counted in log-linear buckets: values below 32 are counted exactly, and
+ * larger values in buckets no wider than a sixteenth of their lower bound,
+ * so percentiles are accurate to within about six percent over the whole
+ * range of {@code long}.
+ * <p/>
+ * Like {@link StripedLong}, the counts are split between threads so that
+ * recording never contends, and reading is only exact while nothing is
+ * being recorded.
+ */
+public class Histogram {
+  // Bits of precision below the leading bit, and the number of buckets.
+  private static final int BITS = 4, SUB = 1 << BITS;
+  private static final int LINEAR = 2*SUB;
+  private static final int BUCKETS = LINEAR + (63-BITS-1)*SUB;
+  private static final int STRIPES = Math.min(StripedLong.stripes(), 8);
+
+  private final AtomicLongArray counts =
+    new AtomicLongArray(STRIPES*BUCKETS);
+  private final StripedLong count = new StripedLong();
+  private final StripedLong sum = new StripedLong();
+  private final AtomicLong max = new AtomicLong();
+
+  /** Get the bucket {@code value} is counted in. */
+  private static int bucket(long value) {
+    if (value < LINEAR)
+      return (int) value;
+    int e = 63-Long.numberOfLeadingZeros(value);
+    int m = (int) (value >>> (e-BITS)) & (SUB-1);
+    return LINEAR + (e-BITS-1)*SUB + m;
+  }
+
+  /** Get the largest value counted in bucket {@code b}. */
+  private static long highest(int b) {
+    if (b < LINEAR)
+      return b;
+    int e = (b-LINEAR)/SUB + BITS+1, m = (b-LINEAR)%SUB;
+    long low = (long) (SUB+m) << (e-BITS);
+    return low + (1L << (e-BITS)) - 1;
+  }
+
+  /**
+   * Record a value. Negative values are counted as zero.
+   *
+   * @param value the value to record.
+   */
+  public void record(long value) {
+    if (value < 0)
+      value = 0;
+    int stripe = StripedLong.cell() & (STRIPES-1);
+    counts.incrementAndGet(stripe*BUCKETS + bucket(value));
+    count.increment();
+    sum.add(value);
+    for (long m = max.get(); value > m && !max.compareAndSet(m, value);)
+      m = max.get();
+  }
+
+  /** Get the number of values recorded. */
+  public long count() { return count.sum(); }
+
+  /** Get the sum of the values recorded. */
+  public long sum() { return sum.sum(); }
+
+  /** Get the largest value recorded, or zero if there are none. */
+  public long max() { return max.get(); }
+
+  /** Get the mean of the values recorded, or zero if there are none. */
+  public double mean() {
+    long n = count();
+    return (n == 0) ? 0 : (double) sum() / n;
+  }
+
+  /**
+   * Get an estimate of a percentile of the values recorded. The estimate is
+   * the highest value in the bucket the percentile falls in, but never more
+   * than the largest value recorded.
+   *
+   * @param percentile the percentile, from 0 to 100.
+   * @return The estimate, or zero if nothing has been recorded.
+   */
+  public long percentile(double percentile) {
+    return percentiles(percentile)[0];
+  }
+
+  /**
+   * Get estimates of several percentiles at once. This is cheaper than
+   * getting each separately. See {@link #percentile(double)}.
+   *
+   * @param percentiles the percentiles, from 0 to 100.
+   * @return The estimates, in the same order.
+   */
+  public long[] percentiles(double... percentiles) {
+    long[] merged = new long[BUCKETS];
+    long total = 0;
+    for (int s = 0; s < STRIPES; s++) for (int b = 0; b < BUCKETS; b++) {
+      long c = counts.get(s*BUCKETS + b);
+      merged[b] += c;
+      total += c;
+    }
+
+    long max = max();
+    long[] values = new long[percentiles.length];
+    for (int i = 0; total > 0 && i < values.length; i++) {
+      double p = Math.max(0, Math.min(percentiles[i], 100));
+      long rank = Math.max(1, (long) Math.ceil(p/100 * total));
+      long seen = 0;
+      values[i] = max;
+      for (int b = 0; b < BUCKETS; b++) {
+        seen += merged[b];
+        if (seen >= rank) {
+          values[i] = Math.min(highest(b), max);
+          break;
+        }
+      }
+    } return values;
+  }
+
+  /** Discard everything recorded. */
+  public void reset() {
+    for (int i = 0; i < STRIPES*BUCKETS; i++)
+      counts.set(i, 0);
+    count.reset();
+    sum.reset();
+    max.set(0);
+  }
+
+  public String toString() {
+    return String.format("count=%d mean=%.1f p50=%d p99=%d max=%d",
+      count(), mean(), percentile(50), percentile(99), max());
+  }
+}
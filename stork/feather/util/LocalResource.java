@@ -3,6 +3,10 @@ package stork.feather.util;
 import java.io.*;
 import java.nio.*;
 import java.nio.channels.*;
+import java.util.concurrent.atomic.*;
+
+import io.netty.buffer.*;
+import io.netty.util.internal.*;
 
 import stork.feather.*;
 
@@ -11,6 +15,11 @@ public class LocalResource extends Resource<LocalSession,LocalResource> {
   // Separate reference to work around javac bug.
   LocalSession session;
 
+  /** Files at least this large are read through memory mappings. */
+  static volatile long mmapThreshold = 64 << 20;
+  /** The largest chunk a tap will read at once. */
+  static volatile long maxChunkSize = 4 << 20;
+
   public LocalResource(LocalSession session, Path path) {
     super(session, path);
     this.session = session;
@@ -100,6 +109,19 @@ public class LocalResource extends Resource<LocalSession,LocalResource> {
         if (sym != null)
           stat.link = file.toString();
         stat.time = file.lastModified();
+
+        // Describe the children too, since it's cheap to do here.
+        File[] files = stat.dir ? file.listFiles() : null;
+        if (files != null) {
+          Stat[] children = new Stat[files.length];
+          for (int i = 0; i < files.length; i++) {
+            Stat c = children[i] = new Stat(files[i].getName());
+            c.size = files[i].length();
+            c.file = files[i].isFile();
+            c.dir = files[i].isDirectory();
+            c.time = files[i].lastModified();
+          } stat.setFiles(children);
+        }
         return stat;
       }
     }.start().detach();
@@ -135,21 +157,107 @@ public class LocalResource extends Resource<LocalSession,LocalResource> {
     return new LocalTap(this);
   }
 
+  public Tap<LocalResource> tap(long offset, long length) {
+    return new LocalTap(this, offset, length);
+  }
+
+  /**
+   * Set the size at which files start being read by mapping them into memory
+   * rather than by copying them into buffers. Mapped files are emitted as
+   * {@code Slice}s which are views into the mapping, so no copying is done on
+   * the read side. A threshold of zero maps every file, and a negative
+   * threshold disables mapping.
+   *
+   * @param bytes the smallest file size, in bytes, that will be mapped.
+   */
+  public static void mmapThreshold(long bytes) {
+    mmapThreshold = bytes;
+  }
+
+  /**
+   * Set the largest chunk size taps will read. Taps start out reading small
+   * chunks and grow them while the pipeline keeps up, up to this size.
+   *
+   * @param bytes the largest chunk size in bytes.
+   */
+  public static void maxChunkSize(long bytes) {
+    maxChunkSize = Math.max(bytes, LocalTap.MIN_CHUNK_SIZE);
+  }
+
   public Sink<LocalResource> sink() {
     return new LocalSink(this);
   }
+
+  public Sink<LocalResource> archiveSink() {
+    return new UntarSink<LocalResource>(this);
+  }
+
+  public Bell<String> checksum(String algorithm) {
+    final Digest digest = Digest.create(algorithm);
+    return new ThreadBell<String>(session.executor) {
+      public String run() throws Exception {
+        FileInputStream in = new FileInputStream(file());
+        try {
+          FileChannel channel = in.getChannel();
+          ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+          while (channel.read(buffer) >= 0) {
+            buffer.flip();
+            digest.update(buffer);
+            buffer.clear();
+          } return digest.hex();
+        } finally {
+          in.close();
+        }
+      }
+    }.start().detach();
+  }
+
+  /**
+   * If {@code resource} is also a {@code LocalResource}, copy data directly
+   * between the files without proxying it. Otherwise, fall back to a proxy
+   * transfer.
+   */
+  public <D extends Resource<?,D>>
+  Transfer<LocalResource,D> transferTo(D resource) {
+    if (resource instanceof LocalResource)
+      return (Transfer<LocalResource,D>)
+        (Transfer) new LocalTransfer(this, (LocalResource) resource);
+    return super.transferTo(resource);
+  }
 }
 
 class LocalTap extends Tap<LocalResource> {
+  /** The size of mapped windows. */
+  static final long WINDOW_SIZE = 64 << 20;
+  /** The chunk size taps start with and never go below. */
+  static final long MIN_CHUNK_SIZE = 64 << 10;
+
   final File file = source().file();
   private volatile Bell<?> pause = Bell.rungBell();
   private RandomAccessFile raf;
   private FileChannel channel;
   private long offset = 0, remaining = 0;
-  private long chunkSize = 4096;
+  private boolean mapped;
+  private MappedWindow window;
+
+  // Chunk size adaptation state. See adapt().
+  private long chunkSize = MIN_CHUNK_SIZE;
+  private long lastRead, lastLength;
+  private double lastRate;
+
+  // The range of the file to read. A negative length means to the end.
+  private final long start, length;
 
   // State of the current transfer.
-  public LocalTap(LocalResource root) { super(root); }
+  public LocalTap(LocalResource root) { this(root, 0, -1); }
+
+  public LocalTap(LocalResource root, long start, long length) {
+    super(root);
+    if (start < 0)
+      throw new IllegalArgumentException("Negative offset: "+start);
+    this.start = start;
+    this.length = length;
+  }
 
   public Bell start(Bell bell) throws Exception {
     if (!file.exists())
@@ -162,7 +270,13 @@ class LocalTap extends Tap<LocalResource> {
     // Set up state.
     raf = new RandomAccessFile(file, "r");
     channel = raf.getChannel();
-    remaining = file.length();
+    offset = Math.min(start, file.length());
+    remaining = file.length()-offset;
+    if (length >= 0 && length < remaining)
+      remaining = length;
+    channel.position(offset);
+    long threshold = LocalResource.mmapThreshold;
+    mapped = threshold >= 0 && remaining > 0 && remaining >= threshold;
 
     return bell.new Promise() {
       public void done() { doRead(); }
@@ -170,15 +284,18 @@ class LocalTap extends Tap<LocalResource> {
   }
 
   public void doRead() {
+    final boolean held = !pause.isDone();
     pause.new As<Void>() {
       public Void convert(Object o) throws Exception {
-        long len = remaining < chunkSize ? remaining : chunkSize;
-        ByteBuffer buffer = ByteBuffer.allocate((int) len);
-        len = channel.read(buffer);
+        long now = System.nanoTime();
+        if (lastRead > 0)
+          adapt(held, lastLength, now-lastRead);
+        lastRead = now;
+
+        Slice slice = mapped ? mapSlice() : readSlice();
 
-        if (len >= 0) {
-          buffer.rewind();
-          Slice slice = new Slice(buffer);
+        if (slice != null) {
+          long len = lastLength = slice.length();
           pause = drain(slice);
           offset += len;
           remaining -= len;
@@ -197,7 +314,57 @@ class LocalTap extends Tap<LocalResource> {
     };
   }
 
+  // Adjust the chunk size given how long it took to get through the last
+  // chunk, and whether the pipeline held us back. While the pipeline keeps up,
+  // chunks double in size up to the ceiling. Under backpressure, chunks are
+  // halved if throughput dropped noticeably, since bigger chunks only tie up
+  // more memory once the sink is the bottleneck.
+  private void adapt(boolean held, long length, long nanos) {
+    double rate = length / (double) Math.max(nanos, 1);
+    if (!held || rate > lastRate*1.1)
+      chunkSize = Math.min(chunkSize*2, LocalResource.maxChunkSize);
+    else if (rate < lastRate*0.9)
+      chunkSize = Math.max(chunkSize/2, MIN_CHUNK_SIZE);
+    lastRate = rate;
+  }
+
+  // Read the next chunk into a pooled buffer. Returns null at end of file.
+  private Slice readSlice() throws Exception {
+    long len = remaining < chunkSize ? remaining : chunkSize;
+    ByteBuf buffer = Slice.allocate((int) len);
+    try {
+      len = buffer.writeBytes(channel, (int) len);
+    } catch (Exception e) {
+      buffer.release();
+      throw e;
+    }
+
+    if (len < 0) {
+      buffer.release();
+      return null;
+    } return new Slice(buffer, offset);
+  }
+
+  // Get a view of the next chunk from the mapped window, mapping the next
+  // window if necessary.
+  private Slice mapSlice() throws Exception {
+    if (window == null || offset >= window.end) {
+      if (window != null)
+        window.close();
+      window = null;
+      long size = remaining < WINDOW_SIZE ? remaining : WINDOW_SIZE;
+      window = new MappedWindow(channel, offset, size);
+    }
+    long len = window.end-offset;
+    if (len > chunkSize)
+      len = chunkSize;
+    return new Slice(window.slice(offset, (int) len), offset);
+  }
+
   protected void finish(Throwable t) {
+    if (window != null)
+      window.close();
+    window = null;
     try {
       raf.close();
       channel.close();
@@ -206,12 +373,57 @@ class LocalTap extends Tap<LocalResource> {
   }
 }
 
+/**
+ * A region of a file mapped into memory. Buffers sliced from it are views into
+ * the mapping, and the mapping is unmapped as soon as the owner has closed it
+ * and every buffer sliced from it has been released, rather than whenever the
+ * garbage collector gets to it.
+ */
+class MappedWindow {
+  final long start, end;
+  private final MappedByteBuffer buffer;
+  private final AtomicInteger refs = new AtomicInteger(1);
+
+  MappedWindow(FileChannel channel, long start, long size) throws IOException {
+    this.start = start;
+    this.end = start+size;
+    buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+  }
+
+  // Get a buffer for part of the window. It must be released.
+  ByteBuf slice(long offset, int length) {
+    ByteBuffer view = buffer.duplicate();
+    view.position((int) (offset-start));
+    view.limit(view.position()+length);
+    refs.incrementAndGet();
+    return new WrappedByteBuf(Unpooled.wrappedBuffer(view.slice())) {
+      public boolean release() {
+        return released(super.release());
+      } public boolean release(int decrement) {
+        return released(super.release(decrement));
+      }
+    };
+  }
+
+  // Called when a sliced buffer is released.
+  private boolean released(boolean deallocated) {
+    if (deallocated)
+      close();
+    return deallocated;
+  }
+
+  // Give up a reference to the mapping, unmapping it if it was the last.
+  void close() {
+    if (refs.decrementAndGet() == 0)
+      PlatformDependent.freeDirectBuffer(buffer);
+  }
+}
+
 class LocalSink extends Sink<LocalResource> {
   final File file = destination().file();
   private RandomAccessFile raf;
   private FileChannel channel;
   private long offset = 0, remaining = 0;
-  private long chunkSize = 4096;
 
   // State of the current transfer.
   public LocalSink(LocalResource root) { super(root); }
@@ -236,11 +448,21 @@ class LocalSink extends Sink<LocalResource> {
     }.start();
   }
 
+  // Slices are written at their offsets, if they have them.
+  public boolean random() { return true; }
+
   public Bell drain(final Slice slice) {
     return new ThreadBell(destination().session.executor) {
       public Object run() throws Exception {
-        channel.write(slice.asByteBuf().nioBuffer());
-        slice.asByteBuf().release();
+        try {
+          ByteBuffer buffer = slice.asByteBuffer();
+          long position = (slice.offset() >= 0) ? slice.offset() : offset;
+          while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+          offset = position;
+        } finally {
+          slice.release();
+        }
         return null;
       }
     }.start();
@@ -0,0 +1,152 @@
+package stork.feather.util;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import stork.feather.*;
+
+/**
+ * A {@code Transfer} between two {@code LocalResource}s. Rather than reading
+ * data into {@code Slice}s and writing it back out, file data is copied with
+ * {@link FileChannel#transferTo(long, long, WritableByteChannel)}, which lets
+ * the JVM hand the copy to the kernel (e.g., through {@code sendfile} or
+ * {@code copy_file_range}) where the platform supports it. Directories are
+ * copied recursively.
+ * <p/>
+ * Files are copied in chunks of at most {@link #CHUNK_SIZE} bytes so that
+ * progress is reported and cancellation is noticed while large files are
+ * being copied. Rate limits are applied between chunks, which are smaller
+ * while any limit is in effect so changes to it are noticed promptly.
+ */
+public class LocalTransfer extends Transfer<LocalResource,LocalResource> {
+  /** The most data copied by a single call into the kernel. */
+  static final long CHUNK_SIZE = 8 << 20;
+  /** The most data copied at once while a rate limit is in effect. */
+  static final long THROTTLED_CHUNK_SIZE = 256 << 10;
+
+  // Rate limits applied to the copy. See throttle().
+  private volatile List<TokenBucket> buckets = Collections.emptyList();
+
+  /** File progress of the transfer. */
+  public final TransferInfo files = new TransferInfo();
+
+  public LocalTransfer(LocalResource source, LocalResource destination) {
+    super(source, destination);
+
+    onStart().new Promise() {
+      public void done() { copy(); }
+    };
+  }
+
+  /**
+   * Limit the rate data is copied at with the given {@link TokenBucket}s. The
+   * rates may be changed while the transfer is running.
+   *
+   * @param buckets the buckets to take from.
+   * @return This {@code LocalTransfer}.
+   */
+  public LocalTransfer throttle(List<TokenBucket> buckets) {
+    this.buckets = new ArrayList<TokenBucket>(buckets);
+    return this;
+  }
+
+  // Run the copy on its own thread, since it blocks for as long as the copy
+  // takes and the session executors are needed for other operations.
+  private void copy() {
+    new ThreadBell<Void>() {
+      public Void run() throws Exception {
+        copy(source.file(), destination.file());
+        return null;
+      } public void done() {
+        stop();
+      } public void fail(Throwable t) {
+        stop(t);
+      }
+    }.start();
+  }
+
+  // Copy a file or directory.
+  private void copy(File from, File to) throws Exception {
+    if (isDone())
+      throw new CancellationException();
+    if (from.isDirectory())
+      copyDirectory(from, to);
+    else if (from.isFile())
+      copyFile(from, to);
+    else if (!from.exists())
+      throw new RuntimeException("Resource does not exist: "+from);
+  }
+
+  // Recursively copy a directory.
+  private void copyDirectory(File from, File to) throws Exception {
+    if (to.exists() && !to.isDirectory())
+      throw new RuntimeException("Resource is a file: "+to);
+    else if (!to.exists() && !to.mkdirs())
+      throw new RuntimeException("Could not create directory: "+to);
+
+    String[] names = from.list();
+    if (names == null)
+      throw new RuntimeException("Resource is not a directory: "+from);
+    for (String name : names)
+      copy(new File(from, name), new File(to, name));
+  }
+
+  // Get the size of the next chunk to copy.
+  private long chunkSize() {
+    for (TokenBucket b : buckets)
+      if (b.limited()) return THROTTLED_CHUNK_SIZE;
+    return CHUNK_SIZE;
+  }
+
+  // Take tokens for copied data, and wait until they may be used. This runs
+  // on the copying thread, so it may block.
+  private void throttle(long size) throws InterruptedException {
+    double wait = 0;
+    for (TokenBucket b : buckets)
+      wait = Math.max(wait, b.take(size));
+    if (wait > 0)
+      Thread.sleep((long) (wait*1E3));
+  }
+
+  // Copy a regular file.
+  private void copyFile(File from, File to) throws Exception {
+    if (to.isDirectory())
+      throw new RuntimeException("Resource is a directory: "+to);
+
+    synchronized (this) {
+      files.total++;
+    }
+    FileInputStream in = new FileInputStream(from);
+    FileOutputStream out = null;
+    try {
+      out = new FileOutputStream(to);
+      FileChannel ic = in.getChannel(), oc = out.getChannel();
+      long size = ic.size();
+      addTotal(size);
+
+      for (long position = 0; position < size;) {
+        if (isDone())
+          throw new CancellationException();
+        long len = Math.min(chunkSize(), size-position);
+        long n = ic.transferTo(position, len, oc);
+        if (n <= 0)
+          throw new IOException("File shrank while copying: "+from);
+        position += n;
+        addProgress(n);
+        throttle(n);
+      }
+    } finally {
+      try {
+        in.close();
+      } finally {
+        if (out != null) out.close();
+      }
+    }
+
+    synchronized (this) {
+      files.done++;
+    }
+  }
+}
@@ -0,0 +1,160 @@
+package stork.feather.util;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import stork.feather.*;
+
+/**
+ * A limit on the number of bytes buffered at once, shared by everything
+ * drawing from it. Each {@code Pipe} charges the bytes waiting in its window
+ * to an {@link Account}, and stops accepting more while its account is not
+ * {@link Account#allowed() allowed} to take more.
+ * <p/>
+ * Buffers are shared fairly between accounts. While less than half the
+ * budget is in use, any account may take more. Past that, only accounts
+ * holding less than an even share of the budget among the accounts holding
+ * anything may take more, so one transfer can't crowd out the others. Once
+ * the budget is used up, nobody may take more until something is released.
+ * <p/>
+ * Charges are made as data is buffered, and an account is only checked
+ * before the next charge, so the limit may be exceeded by a {@code Slice} for
+ * each {@code Pipe}. A budget with no limit only keeps count.
+ */
+public class MemoryBudget {
+  private static final MemoryBudget global = new MemoryBudget();
+
+  private volatile long limit = 0;
+  private final AtomicLong used = new AtomicLong();
+  private final AtomicLong peak = new AtomicLong();
+  private final AtomicInteger active = new AtomicInteger();
+  private final Account shared = account();
+
+  // Bells waiting for something to be released.
+  private final List<Bell> waiters = new LinkedList<Bell>();
+  private volatile boolean waiting = false;
+
+  /** Get the server-wide budget every {@code Pipe} draws from by default. */
+  public static MemoryBudget global() { return global; }
+
+  /** Get the limit of this budget in bytes, or zero if there is none. */
+  public long limit() { return limit; }
+
+  /**
+   * Set the limit of this budget. Buffers already held are not affected.
+   *
+   * @param bytes the most bytes to buffer, or zero or less for no limit.
+   * @return This {@code MemoryBudget}.
+   */
+  public MemoryBudget limit(long bytes) {
+    limit = Math.max(bytes, 0);
+    wake();
+    return this;
+  }
+
+  /** Get the number of bytes currently charged to this budget. */
+  public long used() { return used.get(); }
+
+  /** Get the most bytes which have been charged to this budget at once. */
+  public long peak() { return peak.get(); }
+
+  /** Get the number of accounts currently holding anything. */
+  public int active() { return active.get(); }
+
+  /**
+   * Get the account used by anything not given an account of its own.
+   */
+  public Account shared() { return shared; }
+
+  /** Create a new account, such as for a transfer. */
+  public Account account() { return new Account(); }
+
+  /** A share of the budget which charges are made against. */
+  public class Account {
+    private final AtomicLong held = new AtomicLong();
+
+    private Account() { }
+
+    /** Get the budget this account draws from. */
+    public MemoryBudget budget() { return MemoryBudget.this; }
+
+    /** Get the number of bytes charged to this account. */
+    public long held() { return held.get(); }
+
+    /** Charge {@code bytes} to this account. This always succeeds. */
+    public void take(long bytes) {
+      if (held.getAndAdd(bytes) == 0)
+        active.incrementAndGet();
+      long now = used.addAndGet(bytes);
+      for (long p = peak.get(); now > p && !peak.compareAndSet(p, now);)
+        p = peak.get();
+    }
+
+    /** Give back {@code bytes} charged to this account. */
+    public void give(long bytes) {
+      if (held.addAndGet(-bytes) == 0)
+        active.decrementAndGet();
+      used.addAndGet(-bytes);
+      if (waiting)
+        wake();
+    }
+
+    /** Check if this account may take more. */
+    public boolean allowed() {
+      long limit = MemoryBudget.this.limit;
+      if (limit <= 0)
+        return true;
+      long used = MemoryBudget.this.used.get();
+      if (used >= limit)
+        return false;
+      if (used < limit/2)
+        return true;
+      return held.get() < limit / Math.max(active.get(), 1);
+    }
+
+    /**
+     * Get a {@code Bell} which rings once this account may take more. It
+     * rings right away if it already may.
+     */
+    public Bell room() {
+      Bell room = new Bell();
+      await(room);
+      return room;
+    }
+
+    // Ring room once allowed, checking again each time something is
+    // released.
+    private void await(final Bell room) {
+      if (allowed()) {
+        room.ring();
+        return;
+      }
+
+      Bell bell = new Bell();
+      synchronized (waiters) {
+        waiters.add(bell);
+        waiting = true;
+      }
+      bell.new Promise() {
+        public void done() { await(room); }
+      };
+
+      // Something may have been released in the meantime.
+      if (allowed())
+        wake();
+    }
+  }
+
+  // Wake everything waiting, so it can check again.
+  private void wake() {
+    List<Bell> bells;
+    synchronized (waiters) {
+      if (waiters.isEmpty())
+        return;
+      bells = new ArrayList<Bell>(waiters);
+      waiters.clear();
+      waiting = false;
+    } for (Bell b : bells)
+      b.ring();
+  }
+}
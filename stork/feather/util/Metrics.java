@@ -0,0 +1,260 @@
+package stork.feather.util;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import stork.feather.*;
+
+/**
+ * A registry of named metrics. Anything wishing to expose measurements, such
+ * as jobs, sessions, and transfer modules, registers them here, and whatever
+ * reports them reads them back out through {@link #metrics()}.
+ * <p/>
+ * Metrics are identified by a name and an optional list of label names and
+ * values, and are created the first time they are asked for. Callers on the
+ * data path should look up their metrics once and hold on to them, since
+ * lookups build a key and are slower than recording.
+ */
+public class Metrics {
+  private static final Metrics global = new Metrics();
+
+  private final ConcurrentMap<String,Metric> metrics =
+    new ConcurrentSkipListMap<String,Metric>();
+
+  /** Get the server-wide registry. */
+  public static Metrics global() { return global; }
+
+  /** A registered metric, with its name and labels. */
+  public static abstract class Metric {
+    private String name;
+    private String[] labels;
+
+    /** Get the name of this metric. */
+    public final String name() { return name; }
+
+    /** Get the labels of this metric, as alternating names and values. */
+    public final String[] labels() { return labels.clone(); }
+  }
+
+  /** A count which only goes up. */
+  public static class Counter extends Metric {
+    private final StripedLong count = new StripedLong();
+
+    /** Add {@code n} to the count. */
+    public void add(long n) { count.add(n); }
+
+    /** Add one to the count. */
+    public void increment() { count.add(1); }
+
+    /** Get the count. */
+    public long value() { return count.sum(); }
+  }
+
+  /**
+   * A level which may go up and down. Subclasses may instead override
+   * {@link #value()} to read a value when it is reported.
+   */
+  public static class Gauge extends Metric {
+    private final StripedLong level = new StripedLong();
+
+    /** Add {@code n} to the level, which may be negative. */
+    public void add(long n) { level.add(n); }
+
+    /** Get the current value. */
+    public double value() { return level.sum(); }
+  }
+
+  /** A {@link Histogram} of recorded values. */
+  public static class Distribution extends Metric {
+    public final Histogram histogram = new Histogram();
+
+    /** Record a value. */
+    public void record(long value) { histogram.record(value); }
+
+    /**
+     * Record the nanoseconds from now until {@code bell} rings, if it rings
+     * successfully.
+     *
+     * @return {@code bell}.
+     */
+    public <B extends Bell> B time(B bell) {
+      final long time = System.nanoTime();
+      bell.new Promise() {
+        public void done() { record(System.nanoTime()-time); }
+      };
+      return bell;
+    }
+  }
+
+  /**
+   * Get the counter named {@code name} with the given labels, creating it if
+   * it does not exist.
+   *
+   * @param name the name of the counter.
+   * @param labels alternating label names and values.
+   * @throws IllegalArgumentException if a different kind of metric is
+   * registered under the same name and labels.
+   */
+  public Counter counter(String name, String... labels) {
+    return get(Counter.class, name, labels);
+  }
+
+  /**
+   * Get the distribution named {@code name} with the given labels, creating
+   * it if it does not exist.
+   *
+   * @param name the name of the distribution.
+   * @param labels alternating label names and values.
+   * @throws IllegalArgumentException if a different kind of metric is
+   * registered under the same name and labels.
+   */
+  public Distribution distribution(String name, String... labels) {
+    return get(Distribution.class, name, labels);
+  }
+
+  /**
+   * Get the gauge named {@code name} with the given labels, creating it if it
+   * does not exist.
+   *
+   * @param name the name of the gauge.
+   * @param labels alternating label names and values.
+   * @throws IllegalArgumentException if a different kind of metric is
+   * registered under the same name and labels.
+   */
+  public Gauge gauge(String name, String... labels) {
+    return get(Gauge.class, name, labels);
+  }
+
+  /**
+   * Register {@code gauge} under {@code name} with the given labels,
+   * replacing anything already registered there.
+   *
+   * @param name the name of the gauge.
+   * @param gauge the gauge to register.
+   * @param labels alternating label names and values.
+   * @return {@code gauge}.
+   */
+  public <G extends Gauge> G gauge(String name, G gauge, String... labels) {
+    label(gauge, name, labels);
+    metrics.put(key(name, labels), gauge);
+    return gauge;
+  }
+
+  /**
+   * Remove the metric named {@code name} with the given labels, such as when
+   * whatever it measures goes away.
+   *
+   * @return The removed metric, or {@code null} if there was none.
+   */
+  public Metric remove(String name, String... labels) {
+    return metrics.remove(key(name, labels));
+  }
+
+  /**
+   * Get every registered metric, ordered so metrics of the same name are
+   * together.
+   */
+  public Collection<Metric> metrics() {
+    return Collections.unmodifiableCollection(metrics.values());
+  }
+
+  /**
+   * Write every metric in the Prometheus text format, with {@code prefix}
+   * added to their names. Distributions are written as summaries.
+   *
+   * @param out the buffer to write to.
+   * @param prefix a prefix for metric names, such as {@code "stork_"}.
+   * @return {@code out}.
+   */
+  public StringBuilder write(StringBuilder out, String prefix) {
+    String last = null;
+    for (Metric m : metrics.values()) {
+      String name = prefix+m.name;
+      if (!name.equals(last)) {
+        out.append("# TYPE ").append(name).append(' ').append(
+          (m instanceof Counter) ? "counter" :
+          (m instanceof Gauge)   ? "gauge"   : "summary").append('\n');
+        last = name;
+      } if (m instanceof Counter) {
+        sample(out, name, m.labels, null, ((Counter) m).value());
+      } else if (m instanceof Gauge) {
+        sample(out, name, m.labels, null, ((Gauge) m).value());
+      } else if (m instanceof Distribution) {
+        Histogram h = ((Distribution) m).histogram;
+        long[] q = h.percentiles(50, 90, 99);
+        sample(out, name, m.labels, "0.5",  q[0]);
+        sample(out, name, m.labels, "0.9",  q[1]);
+        sample(out, name, m.labels, "0.99", q[2]);
+        sample(out, name+"_sum", m.labels, null, h.sum());
+        sample(out, name+"_count", m.labels, null, h.count());
+      }
+    } return out;
+  }
+
+  // Write a sample line, with a quantile label if one is given.
+  private static void sample(
+      StringBuilder out, String name, String[] labels, String q, double v) {
+    out.append(name);
+    if (labels.length > 0 || q != null) {
+      char sep = '{';
+      for (int i = 0; i < labels.length; i += 2) {
+        out.append(sep).append(labels[i]).append("=\"");
+        escape(out, labels[i+1]).append('"');
+        sep = ',';
+      } if (q != null) {
+        out.append(sep).append("quantile=\"").append(q).append('"');
+      } out.append('}');
+    }
+    out.append(' ');
+    if (v == Math.rint(v) && !Double.isInfinite(v))
+      out.append((long) v);
+    else
+      out.append(v);
+    out.append('\n');
+  }
+
+  // Escape a label value.
+  private static StringBuilder escape(StringBuilder out, String value) {
+    for (char c : String.valueOf(value).toCharArray()) switch (c) {
+      case '\\': out.append("\\\\"); break;
+      case '"':  out.append("\\\""); break;
+      case '\n': out.append("\\n"); break;
+      default:   out.append(c);
+    } return out;
+  }
+
+  // Get or create a metric of the given type.
+  private <M extends Metric> M get(Class<M> type, String name, String[] l) {
+    String key = key(name, l);
+    Metric m = metrics.get(key);
+    if (m == null) try {
+      M n = label(type.newInstance(), name, l);
+      m = metrics.putIfAbsent(key, n);
+      if (m == null)
+        return n;
+    } catch (ReflectiveOperationException e) {
+      throw new RuntimeException(e);
+    } if (!type.isInstance(m)) {
+      throw new IllegalArgumentException(key+" is not a "+
+        type.getSimpleName().toLowerCase()+".");
+    } return type.cast(m);
+  }
+
+  private static <M extends Metric> M label(M m, String name, String[] l) {
+    if (l.length % 2 != 0)
+      throw new IllegalArgumentException("Labels must be name-value pairs.");
+    Metric metric = m;
+    metric.name = name;
+    metric.labels = l.clone();
+    return m;
+  }
+
+  // Build the key a metric is registered under. The space sorts before any
+  // character allowed in a name, keeping metrics of the same name together.
+  private static String key(String name, String[] labels) {
+    StringBuilder sb = new StringBuilder(name);
+    for (String s : labels)
+      sb.append(' ').append(s);
+    return sb.toString();
+  }
+}
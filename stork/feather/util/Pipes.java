@@ -33,7 +33,8 @@ public final class Pipes {
 
   /**
    * Create a {@code Tap} which emits the given {@code Slice} for the given
-   * {@code Resource} {@code root}.
+   * {@code Resource} {@code root}. The returned {@code Tap} takes ownership
+   * of {@code slice}.
    */
   public static Tap tapFromSlice(Resource root, final Slice slice) {
     return new Tap(root) {
@@ -107,24 +108,32 @@ public final class Pipes {
   }
 
   /**
-   * A {@code Sink} which receives and aggregates {@code Slice}s.
+   * A {@code Sink} which receives and aggregates {@code Slice}s. The {@code
+   * Slice} its {@code Bell} rings with owns the buffers of the aggregated
+   * {@code Slice}s, and should be released once it has been read.
    */
   public static class AggregatorSink extends Sink {
     private Bell<Slice> bell = new Bell<Slice>();
     private List<ByteBuf> list = new LinkedList<ByteBuf>();
+    private long held = 0;
 
     public AggregatorSink(Resource r) { super(r); }
 
     public Bell<Slice> bell() { return bell; }
 
+    // The data held is charged to the memory budget until it's handed off.
     public Bell drain(Slice slice) {
       list.add(slice.asByteBuf());
-      return null;
+      held += slice.length();
+      account().take(slice.length());
+      return account().room();
     }
 
     public void finish(Throwable t) {
       ByteBuf[] array = list.toArray(new ByteBuf[0]);
       ByteBuf buf = Unpooled.wrappedBuffer(array);
+      account().give(held);
+      held = 0;
       bell.ring(new Slice(buf));
     }
   }
@@ -149,9 +158,12 @@ public final class Pipes {
  * View a Tap as an InputStream.
  */
 class PipeInputStream extends InputStream {
-  /** Queue of buffers received. */
-  private LinkedBlockingDeque<ByteBuffer> buffers =
-    new LinkedBlockingDeque<ByteBuffer>();
+  /** Queue of slices received. */
+  private LinkedBlockingDeque<Slice> slices =
+    new LinkedBlockingDeque<Slice>();
+  /** The slice being read from and a view of its unread bytes. */
+  private Slice slice;
+  private ByteBuffer buffer;
   /** Ring on read. */
   private Bell readBell = new Bell();
   /** True when tap has finished. */
@@ -186,9 +198,10 @@ class PipeInputStream extends InputStream {
    * Save the slice and hold until it has been read out.
    */
   private synchronized Bell handleDrain(Slice slice) {
-    ByteBuffer buf = slice.asByteBuffer();
-    if (buf.remaining() > 0)
-      buffers.add(slice.asByteBuffer());
+    if (slice.length() > 0)
+      slices.add(slice);
+    else
+      slice.release();
     return readBell.detach();
   }
 
@@ -215,14 +228,21 @@ class PipeInputStream extends InputStream {
     }
     int total = 0;
 
-    // Keep taking buffers and filling b until done.
+    // Keep taking slices and filling b until done. Release each slice once
+    // it has been read out completely.
     while (!isDone() && total < len) try {
-      ByteBuffer buf = buffers.take();
-      int size = Math.min(len-total, buf.remaining());
-      buf.get(b, off+total, size);
+      if (buffer == null) {
+        slice = slices.take();
+        buffer = slice.asByteBuffer();
+      }
+      int size = Math.min(len-total, buffer.remaining());
+      buffer.get(b, off+total, size);
       total += size;
-      if (buf.hasRemaining())
-        buffers.addFirst(buf);
+      if (!buffer.hasRemaining()) {
+        slice.release();
+        slice = null;
+        buffer = null;
+      }
     } catch (InterruptedException e) {
       break;
     }
@@ -242,6 +262,6 @@ class PipeInputStream extends InputStream {
   private synchronized boolean isDone() throws IOException {
     if (error != null)
       throw error;
-    return done && buffers.isEmpty();
+    return done && buffer == null && slices.isEmpty();
   }
 }
@@ -1,22 +1,24 @@
 package stork.feather.util;
 
 /**
- * A utility for measuring the progress of some operation. 
+ * A utility for measuring the progress of some operation. Progress may be
+ * added from many threads at once without them contending.
  */
 public class Progress {
-  private long done = 0, total = 0;
+  private final StripedLong done = new StripedLong();
+  private final StripedLong total = new StripedLong();
 
   public Progress() { }
 
   public Progress(long total) {
-    this.total = total;
+    this.total.add(total);
   }
 
-  public synchronized long done() { return done; }
+  public long done() { return done.sum(); }
 
-  public synchronized long total() { return total; }
+  public long total() { return total.sum(); }
 
-  public synchronized long remaining() { return total-done; }
+  public long remaining() { return total()-done(); }
 
   /**
    * Finish this progress automatically. That is, set {@code done} to be equal
@@ -24,34 +26,36 @@ public class Progress {
    * successfully and we don't want to fill the progress the rest of the way.
    */
   public synchronized void finish() {
-    done = total;
+    done.add(total()-done());
   }
 
-  public synchronized void add(long done, long total) {
-    this.done += done;
-    this.total += total;
+  public void add(long done, long total) {
+    this.done.add(done);
+    this.total.add(total);
   }
 
-  public synchronized void add(long done) {
-    this.done += done;
+  public void add(long done) {
+    this.done.add(done);
   }
 
   /** Get the progress rate based on time. */
-  public synchronized Throughput rate(Time time) {
+  public Throughput rate(Time time) {
     return new Throughput(done(), time.elapsed()/1000);
   }
 
   /** Get the progress as a percentage value. */
-  public synchronized double toPercent() {
+  public double toPercent() {
+    long done = done(), total = total();
     return (total <= 0) ? 0 : 100.0 * done / total;
   }
 
   /** Get the progress as a percentage {@code String}. */
-  public synchronized String toPercentString() {
+  public String toPercentString() {
     return String.format("%.0f%%", toPercent());
   }
 
-  public synchronized String toString() {
+  public String toString() {
+    long done = done(), total = total();
     return (total <= 0) ?
       Throughput.prettySize(done) :
       Throughput.prettySize(done)+"/"+Throughput.prettySize(total);
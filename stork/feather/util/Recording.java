@@ -0,0 +1,219 @@
+package stork.feather.util;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import stork.feather.*;
+
+/**
+ * A flight recording of timed events, such as sessions opening, files being
+ * transferred, and {@code Bell}s waiting to be dispatched, for profiling a
+ * running server. Each {@link Event} has a type, the thread and time it began
+ * on, a duration, and any number of named fields. Events are kept in a ring
+ * buffer, so a recording holds the most recent events up to its capacity.
+ * <p/>
+ * Events are only created while a recording is started, so anything emitting
+ * events should get them from {@link #begin(String)}, which returns {@code
+ * null} otherwise, and skip filling them in if it does. When nothing is
+ * recording, this costs a single check. Each recording may give event types a
+ * threshold, and drops events of those types which took less time.
+ * <p/>
+ * The begin times of events are wall-clock times, so they can be lined up
+ * against garbage collector logs and other profiles taken at the same time.
+ */
+public class Recording {
+  // Recordings which have been started. Events are created while this is
+  // nonempty.
+  private static final List<Recording> active =
+    new CopyOnWriteArrayList<Recording>();
+  private static volatile boolean enabled = false;
+
+  private final Event[] ring;
+  private int next = 0;
+  private long count = 0;
+  private final Map<String,Long> thresholds =
+    new ConcurrentHashMap<String,Long>();
+
+  /**
+   * Create a recording which keeps up to {@code capacity} events. It doesn't
+   * record anything until it is {@link #start() started}.
+   *
+   * @param capacity the most events to keep.
+   * @throws IllegalArgumentException if {@code capacity} isn't positive.
+   */
+  public Recording(int capacity) {
+    if (capacity <= 0)
+      throw new IllegalArgumentException("Capacity must be positive.");
+    ring = new Event[capacity];
+  }
+
+  /** Check if any recording is started. */
+  public static boolean enabled() { return enabled; }
+
+  /**
+   * Begin an event of the given type, if anything is recording. The event
+   * should be {@link Event#commit() committed} once whatever it times has
+   * finished.
+   *
+   * @param type the type of the event, such as {@code session.open}.
+   * @return The event, or {@code null} if nothing is recording.
+   */
+  public static Event begin(String type) {
+    return enabled ? new Event(type) : null;
+  }
+
+  /**
+   * Drop events of the given type which take less than {@code nanos}.
+   *
+   * @param type the event type.
+   * @param nanos the threshold in nanoseconds, or zero to keep every event.
+   * @return This {@code Recording}.
+   */
+  public Recording threshold(String type, long nanos) {
+    if (nanos <= 0)
+      thresholds.remove(type);
+    else
+      thresholds.put(type, nanos);
+    return this;
+  }
+
+  /** Start recording. This does nothing if it is already recording. */
+  public synchronized Recording start() {
+    if (!active.contains(this))
+      active.add(this);
+    enabled = true;
+    return this;
+  }
+
+  /**
+   * Stop recording. Events already recorded are kept. This does nothing if
+   * it isn't recording.
+   */
+  public synchronized Recording stop() {
+    active.remove(this);
+    enabled = !active.isEmpty();
+    return this;
+  }
+
+  /** Get the number of events recorded, including any no longer kept. */
+  public synchronized long count() { return count; }
+
+  /** Get the events kept, oldest first. */
+  public synchronized List<Event> events() {
+    List<Event> list = new ArrayList<Event>(ring.length);
+    for (int i = 0; i < ring.length; i++) {
+      Event e = ring[(next+i) % ring.length];
+      if (e != null) list.add(e);
+    } return list;
+  }
+
+  // Keep an event, unless it is below its type's threshold.
+  private void add(Event event) {
+    Long threshold = thresholds.get(event.type);
+    if (threshold != null && event.duration < threshold)
+      return;
+    synchronized (this) {
+      ring[next] = event;
+      next = (next+1) % ring.length;
+      count++;
+    }
+  }
+
+  /** An event, which is recorded once it has been committed. */
+  public static final class Event {
+    public final String type;
+    public final String thread = Thread.currentThread().getName();
+    public final long time = System.currentTimeMillis();
+    private final long start = System.nanoTime();
+    private volatile long duration = -1;
+    private final List<Object> fields = new ArrayList<Object>(6);
+
+    private Event(String type) { this.type = type; }
+
+    /**
+     * Set a field of this event.
+     *
+     * @param name the name of the field.
+     * @param value the value of the field.
+     * @return This {@code Event}.
+     */
+    public synchronized Event set(String name, Object value) {
+      for (int i = 0; i < fields.size(); i += 2)
+        if (fields.get(i).equals(name)) {
+          fields.set(i+1, value);
+          return this;
+        }
+      fields.add(name);
+      fields.add(value);
+      return this;
+    }
+
+    /** Get a field of this event, or {@code null} if it isn't set. */
+    public synchronized Object get(String name) {
+      for (int i = 0; i < fields.size(); i += 2)
+        if (fields.get(i).equals(name)) return fields.get(i+1);
+      return null;
+    }
+
+    /**
+     * Get the nanoseconds between this event beginning and being committed,
+     * or -1 if it hasn't been committed.
+     */
+    public long duration() { return duration; }
+
+    /**
+     * End this event, and record it in every started recording. This does
+     * nothing if it has already been committed.
+     */
+    public void commit() {
+      synchronized (this) {
+        if (duration >= 0)
+          return;
+        duration = System.nanoTime()-start;
+      } for (Recording r : active)
+        r.add(this);
+    }
+
+    /**
+     * Commit this event once {@code bell} rings, setting an {@code ok} field
+     * to whether it rang successfully.
+     *
+     * @param bell the {@code Bell} whose wait this event times.
+     * @return The value passed in for {@code bell}.
+     */
+    public <B extends Bell> B commit(final B bell) {
+      bell.new Promise() {
+        public void always() {
+          set("ok", bell.isSuccessful()).commit();
+        }
+      };
+      return bell;
+    }
+
+    public synchronized String toString() {
+      StringBuilder sb = new StringBuilder(String.format(
+        "%tF %<tT.%<tL %s %.3f ms [%s]", time, type, duration/1E6, thread));
+      for (int i = 0; i < fields.size(); i += 2)
+        sb.append(' ').append(fields.get(i)).append('=')
+          .append(fields.get(i+1));
+      return sb.toString();
+    }
+  }
+
+  /** Write the events kept to {@code out}, one per line, oldest first. */
+  public StringBuilder write(StringBuilder out) {
+    List<Event> events = events();
+    long dropped = count()-events.size();
+    out.append(String.format("%d events", events.size()));
+    if (dropped > 0)
+      out.append(" (").append(dropped).append(" not kept)");
+    out.append('\n');
+    for (Event e : events)
+      out.append(e).append('\n');
+    return out;
+  }
+
+  public String toString() {
+    return write(new StringBuilder()).toString();
+  }
+}
@@ -67,7 +67,8 @@ public final class Resources {
 
   /**
    * Get an anonymous data {@code Resource} with a {@code Stat} based on {@code
-   * slice} and whose {@code Tap} emits {@code slice}.
+   * slice} and whose {@code Tap} emits {@code slice}. The {@code Tap} takes
+   * ownership of {@code slice}, so it should only be created once.
    */
   public static Resource fromSlice(final Slice slice) {
     final Stat stat = new Stat();
@@ -75,7 +76,7 @@ public final class Resources {
     stat.time = Time.now();
     stat.size = (slice != null) ? slice.length() : 0;
 
-    if (slice.offset() > 0)
+    if (slice != null && slice.offset() > 0)
       stat.size += slice.offset();
 
     return new Session(URI.EMPTY) {
@@ -0,0 +1,356 @@
+package stork.feather.util;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+
+import stork.feather.*;
+
+/**
+ * A {@code Pipe} which lets a fast {@code Tap} run ahead of a slow {@code
+ * Sink}. {@code Slice}s are accepted right away and held in memory, up to a
+ * limit, and past that are written to a temporary file. They are passed on
+ * in order as downstream makes room. This lets the {@code Tap} finish, and
+ * its connection be released, long before the {@code Sink} does.
+ * <p/>
+ * Slices are only held in memory while the pipe's {@link #account()} is
+ * allowed to take more. The {@code Bell} returned by {@link #drain(Slice)}
+ * only holds the {@code Tap} back once there is room neither in memory nor
+ * on disk. Reading and writing the temporary file is done on a separate
+ * executor, so it doesn't block whatever thread is draining. The file is
+ * deleted when the pipe finishes.
+ */
+public class SpillPipe extends Pipe {
+  private final long memoryLimit, diskLimit;
+  private final File dir;
+
+  // Buffered data, in order, and how much of it is in memory and on disk.
+  private final LinkedList<Held> held = new LinkedList<Held>();
+  private long memory = 0, disk = 0;
+  private Bell room;
+
+  // The spill file, and where the next spilled slice will be written. The
+  // file is only touched by work queued on the I/O executor, one at a time.
+  private File file;
+  private FileChannel channel;
+  private long position = 0;
+  private Bell lastIO = Bell.rungBell();
+
+  // Runs blocking spill file work, so it doesn't hold up Bell dispatch.
+  private static final Executor io =
+    Executors.newCachedThreadPool(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "SpillPipe I/O");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+
+  private boolean pumping = false, finished = false, ended = false;
+  private volatile Throwable error;
+
+  // Metrics. See the accessors.
+  private long spilled = 0, peakMemory = 0, peakDisk = 0;
+
+  // A slice held in memory, or the location of one which was spilled.
+  private static class Held {
+    final Slice slice;
+    final long position, offset;
+    final int length;
+
+    Held(Slice slice) {
+      this.slice = slice;
+      this.position = -1;
+      this.offset = slice.offset();
+      this.length = slice.length();
+    }
+
+    Held(long position, long offset, int length) {
+      this.slice = null;
+      this.position = position;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  /**
+   * Create a {@code SpillPipe} which holds up to {@code memory} bytes in
+   * memory, and up to {@code disk} bytes in a temporary file in {@code dir}.
+   *
+   * @param memory the most bytes to hold in memory.
+   * @param disk the most bytes to write to disk, or zero to never spill.
+   * @param dir the directory to create the spill file in, or {@code null}
+   * for the system default.
+   */
+  public SpillPipe(long memory, long disk, File dir) {
+    this.memoryLimit = Math.max(memory, 0);
+    this.diskLimit = Math.max(disk, 0);
+    this.dir = dir;
+  }
+
+  /** Get the number of bytes currently held in memory and on disk. */
+  public synchronized long buffered() { return memory+disk; }
+
+  /** Get the total number of bytes which have been spilled to disk. */
+  public synchronized long spilled() { return spilled; }
+
+  /** Get the most bytes which have been held in memory at once. */
+  public synchronized long peakMemory() { return peakMemory; }
+
+  /** Get the most bytes which have been held on disk at once. */
+  public synchronized long peakDisk() { return peakDisk; }
+
+  /**
+   * Called each time a {@code Slice} is spilled to disk. The default
+   * implementation does nothing.
+   *
+   * @param bytes the number of bytes spilled.
+   */
+  protected void spilled(long bytes) { }
+
+  protected synchronized Bell drain(Slice slice) throws Exception {
+    if (error != null) {
+      slice.release();
+      return new Bell(error);
+    } if (finished) {
+      slice.release();
+      throw new IllegalStateException("Pipeline has finished.");
+    }
+
+    // Slices are held in memory while both this pipe's limit and the memory
+    // budget allow, are spilled while the disk limit allows, and past that
+    // are held in memory anyway while the tap is held back.
+    int length = slice.length();
+    boolean over = false;
+    if (memory+length <= memoryLimit && account().allowed()) {
+      hold(slice);
+    } else if (disk+length <= diskLimit) {
+      held.add(spill(slice));
+      disk += length;
+      peakDisk = Math.max(peakDisk, disk);
+    } else {
+      hold(slice);
+      over = true;
+    }
+
+    pump();
+
+    if (!over)
+      return Bell.rungBell();
+    Bell bell = account().room();
+    if (memory > memoryLimit) {
+      if (room == null)
+        room = new Bell();
+      bell = room.detach().and(bell);
+    } return bell;
+  }
+
+  // Hold a slice in memory. Must hold lock.
+  private void hold(Slice slice) {
+    held.add(new Held(slice));
+    account().take(slice.length());
+    memory += slice.length();
+    peakMemory = Math.max(peakMemory, memory);
+  }
+
+  // Queue blocking work on the spill file, to run on the I/O executor after
+  // everything queued before it, whether or not that succeeded. Must hold
+  // lock.
+  private <T> ThreadBell<T> queue(final ThreadBell<T> task) {
+    lastIO.new Promise() {
+      public void always() { task.start(); }
+    };
+    lastIO = task;
+    return task;
+  }
+
+  // Write a slice to the spill file in the background, and release it. It
+  // stays charged to the account until it has been written. Must hold lock.
+  private Held spill(final Slice slice) {
+    final Held h = new Held(position, slice.offset(), slice.length());
+    position += h.length;
+    spilled += h.length;
+    spilled(h.length);
+    account().take(h.length);
+
+    queue(new ThreadBell<Object>(io) {
+      public Object run() throws Exception {
+        try {
+          if (error != null)
+            return null;
+          if (channel == null) {
+            file = File.createTempFile("stork-spill", null, dir);
+            file.deleteOnExit();
+            channel = new RandomAccessFile(file, "rw").getChannel();
+          }
+
+          ByteBuffer buffer = slice.asByteBuffer();
+          long p = h.position;
+          while (buffer.hasRemaining())
+            p += channel.write(buffer, p);
+          return null;
+        } finally {
+          slice.release();
+        }
+      } public void always() {
+        account().give(h.length);
+      } public void fail(Throwable t) {
+        abort(t);
+      }
+    });
+    return h;
+  }
+
+  // Read a spilled slice back in the background and pass it on. The
+  // returned bell rings once it has been drained. Must hold lock.
+  private Bell unspill(final Held h) {
+    final Bell drained = new Bell();
+    queue(new ThreadBell<Slice>(io) {
+      public Slice run() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(h.length);
+        long p = h.position;
+        while (buffer.hasRemaining()) {
+          int n = channel.read(buffer, p);
+          if (n < 0)
+            throw new EOFException("Spill file was truncated.");
+          p += n;
+        } buffer.flip();
+        return new Slice(buffer, h.offset);
+      } protected void done(Slice slice) {
+        try {
+          Bell bell = forward(slice);
+          if (bell == null)
+            drained.ring();
+          else
+            bell.promise(drained);
+        } catch (Exception e) {
+          drained.ring(e);
+        }
+      } public void fail(Throwable t) {
+        drained.ring(t);
+      }
+    });
+    return drained;
+  }
+
+  // Pass on a slice read back from disk, unless the pipe has failed.
+  private synchronized Bell forward(Slice slice) throws Exception {
+    if (error != null) {
+      slice.release();
+      return new Bell(error);
+    } return super.drain(slice);
+  }
+
+  // Pass held slices on while downstream has room, then wait for it.
+  private void pump() {
+    while (true) {
+      Bell bell;
+      synchronized (this) {
+        if (pumping || error != null)
+          return;
+        Held h = held.poll();
+        if (h == null) {
+          if (finished && !ended) {
+            ended = true;
+            close();
+            super.finish(null);
+          } return;
+        }
+
+        pumping = true;
+        if (h.slice != null) {
+          memory -= h.length;
+          account().give(h.length);
+          try {
+            bell = super.drain(h.slice);
+          } catch (Exception e) {
+            abort(e);
+            return;
+          }
+        } else {
+          disk -= h.length;
+          bell = unspill(h);
+          if (disk == 0)
+            position = 0;  // Reuse the file from the start.
+        }
+
+        if (room != null && memory <= memoryLimit) {
+          room.ring();
+          room = null;
+        }
+      }
+
+      if (bell == null || bell.isSuccessful()) {
+        synchronized (this) {
+          pumping = false;
+        } continue;
+      }
+
+      bell.new Promise() {
+        public void done() {
+          synchronized (SpillPipe.this) {
+            pumping = false;
+          } pump();
+        } public void fail(Throwable t) {
+          abort(t);
+        }
+      };
+      return;
+    }
+  }
+
+  // Discard everything held, and fail any waiting tap.
+  private synchronized void abort(Throwable t) {
+    if (error != null)
+      return;
+    error = t;
+    for (Held h : held) if (h.slice != null)
+      h.slice.release();
+    held.clear();
+    account().give(memory);
+    memory = disk = 0;
+    close();
+    if (room != null)
+      room.ring(t);
+    room = null;
+    if (finished && !ended) {
+      ended = true;
+      super.finish(t);
+    }
+  }
+
+  protected void failed(Throwable t) { abort(t); }
+
+  // Close and delete the spill file, once everything queued before has run.
+  private synchronized void close() {
+    queue(new ThreadBell<Object>(io) {
+      public Object run() {
+        if (channel == null)
+          return null;
+        try {
+          channel.close();
+        } catch (IOException e) {
+          // Nothing to be done.
+        } file.delete();
+        channel = null;
+        return null;
+      }
+    });
+  }
+
+  protected synchronized void finish(Throwable t) {
+    if (finished)
+      return;
+    finished = true;
+    if (t != null)
+      abort(t);
+    if (error == null) {
+      pump();
+    } else if (!ended) {
+      ended = true;
+      super.finish(error);
+    }
+  }
+}
@@ -0,0 +1,71 @@
+package stork.feather.util;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * A counter which many threads may add to at once without contending with
+ * each other. The count is split into cells, each on its own cache line, and
+ * each thread adds to the cell its ID maps to. Reading the count sums the
+ * cells, so it is slower than adding, and is only exact while nothing is
+ * being added.
+ */
+public class StripedLong {
+  // Longs per cell, so each cell is on its own 64-byte cache line.
+  private static final int PAD = 8;
+  private static final int CELLS = cells();
+
+  private final AtomicLongArray cells = new AtomicLongArray(CELLS*PAD);
+
+  // The smallest power of two at least twice the number of processors.
+  private static int cells() {
+    int n = 2*Runtime.getRuntime().availableProcessors(), c = 1;
+    while (c < n && c < 64)
+      c <<= 1;
+    return c;
+  }
+
+  /** Get the index of the cell the calling thread adds to. */
+  static int cell() {
+    long id = Thread.currentThread().getId();
+    int h = (int) (id ^ (id >>> 32));
+    h ^= (h >>> 16);
+    h *= 0x85ebca6b;
+    h ^= (h >>> 13);
+    return h & (CELLS-1);
+  }
+
+  /** Get the number of cells counts are split into. */
+  static int stripes() { return CELLS; }
+
+  /** Add {@code n} to the count. */
+  public void add(long n) {
+    cells.addAndGet(cell()*PAD, n);
+  }
+
+  /** Add one to the count. */
+  public void increment() { add(1); }
+
+  /** Get the count. */
+  public long sum() {
+    long sum = 0;
+    for (int i = 0; i < CELLS; i++)
+      sum += cells.get(i*PAD);
+    return sum;
+  }
+
+  /**
+   * Get the count and reset it to zero. Anything added while this is running
+   * is either counted or left for the next call, but never lost.
+   */
+  public long sumThenReset() {
+    long sum = 0;
+    for (int i = 0; i < CELLS; i++)
+      sum += cells.getAndSet(i*PAD, 0);
+    return sum;
+  }
+
+  /** Reset the count to zero. */
+  public void reset() { sumThenReset(); }
+
+  public String toString() { return Long.toString(sum()); }
+}
@@ -0,0 +1,182 @@
+package stork.feather.util;
+
+import java.nio.charset.*;
+import java.util.*;
+
+/**
+ * Helpers for reading and writing the POSIX ustar archive format, as used by
+ * {@link TarTap} and {@link UntarSink}. Only regular files and directories
+ * are supported, and names must fit in the ustar name and prefix fields.
+ */
+public final class Tar {
+  private Tar() { }
+
+  /** The size of a header, and the unit archive contents are padded to. */
+  public static final int BLOCK = 512;
+
+  /** The largest file size a header can describe. */
+  public static final long MAX_SIZE = 077777777777L;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /** An entry header read from an archive. */
+  public static class Header {
+    /** The name of the entry, relative to the archive root. */
+    public final String name;
+    /** The size of the entry's data in bytes. */
+    public final long size;
+    /** Whether the entry is a directory. */
+    public final boolean dir;
+
+    Header(String name, long size, boolean dir) {
+      this.name = name;
+      this.size = size;
+      this.dir = dir;
+    }
+  }
+
+  /**
+   * Check if a file with the given name and size can be put in an archive.
+   *
+   * @param name the name of the entry, relative to the archive root.
+   * @param size the size of the file.
+   * @return {@code true} if a header can describe the file.
+   */
+  public static boolean fits(String name, long size) {
+    return size >= 0 && size <= MAX_SIZE && split(name) != null;
+  }
+
+  /**
+   * Get the number of bytes of padding which follow data of the given size.
+   */
+  public static int padding(long size) {
+    return (int) ((BLOCK - size % BLOCK) % BLOCK);
+  }
+
+  /**
+   * Create a header for a regular file.
+   *
+   * @param name the name of the entry, relative to the archive root.
+   * @param size the size of the file.
+   * @param time the modification time of the file in milliseconds.
+   * @return The header block.
+   * @throws IllegalArgumentException if the file does not fit in a header.
+   */
+  public static byte[] header(String name, long size, long time) {
+    byte[][] parts = split(name);
+    if (parts == null || size < 0 || size > MAX_SIZE)
+      throw new IllegalArgumentException("Cannot archive: "+name);
+
+    byte[] h = new byte[BLOCK];
+    put(h, 0, parts[1]);
+    octal(h, 100, 8, 0644);
+    octal(h, 108, 8, 0);
+    octal(h, 116, 8, 0);
+    octal(h, 124, 12, size);
+    octal(h, 136, 12, Math.max(time, 0) / 1000);
+    h[156] = '0';
+    put(h, 257, "ustar".getBytes(UTF8));
+    h[263] = '0';
+    h[264] = '0';
+    put(h, 345, parts[0]);
+
+    // The checksum is taken with its own field filled with spaces.
+    Arrays.fill(h, 148, 156, (byte) ' ');
+    long sum = 0;
+    for (byte b : h)
+      sum += b & 0xff;
+    octal(h, 148, 7, sum);
+    return h;
+  }
+
+  /**
+   * Check if a block is all zeros, which marks the end of an archive.
+   */
+  public static boolean isEnd(byte[] block) {
+    for (byte b : block)
+      if (b != 0) return false;
+    return true;
+  }
+
+  /**
+   * Parse a header block.
+   *
+   * @param h the header block.
+   * @return The parsed {@code Header}.
+   * @throws IllegalArgumentException if the header is malformed or describes
+   * an unsupported kind of entry.
+   */
+  public static Header parse(byte[] h) {
+    long sum = 0;
+    for (int i = 0; i < BLOCK; i++)
+      sum += (i >= 148 && i < 156) ? ' ' : (h[i] & 0xff);
+    if (sum != octal(h, 148, 8))
+      throw new IllegalArgumentException("Bad tar header checksum.");
+
+    String name = string(h, 0, 100), prefix = string(h, 345, 155);
+    if (!prefix.isEmpty())
+      name = prefix+"/"+name;
+    if (name.isEmpty() || name.startsWith("/") || name.equals("..") ||
+        name.startsWith("../") || name.contains("/../") ||
+        name.endsWith("/.."))
+      throw new IllegalArgumentException("Bad tar entry name: "+name);
+
+    switch (h[156]) {
+      case 0: case '0':
+        return new Header(name, octal(h, 124, 12), false);
+      case '5':
+        return new Header(name.replaceAll("/+$", ""), 0, true);
+      default:
+        throw new IllegalArgumentException(
+          "Unsupported tar entry type: "+(char) h[156]);
+    }
+  }
+
+  // Split a name into its prefix and name fields, or return null if it
+  // doesn't fit.
+  private static byte[][] split(String name) {
+    byte[] b = name.getBytes(UTF8);
+    if (b.length == 0)
+      return null;
+    if (b.length <= 100)
+      return new byte[][] { new byte[0], b };
+    for (int i = Math.min(b.length-1, 155); i > 0; i--) {
+      if (b[i] == '/' && b.length-i-1 <= 100) return new byte[][] {
+        Arrays.copyOfRange(b, 0, i), Arrays.copyOfRange(b, i+1, b.length)
+      };
+    } return null;
+  }
+
+  private static void put(byte[] h, int off, byte[] b) {
+    System.arraycopy(b, 0, h, off, b.length);
+  }
+
+  // Write a zero-padded, NUL-terminated octal number.
+  private static void octal(byte[] h, int off, int len, long n) {
+    String s = Long.toOctalString(n);
+    while (s.length() < len-1)
+      s = "0"+s;
+    put(h, off, s.getBytes(UTF8));
+    h[off+len-1] = 0;
+  }
+
+  // Read an octal number, ignoring surrounding spaces and NULs.
+  private static long octal(byte[] h, int off, int len) {
+    String s = new String(h, off, len, UTF8).replaceAll("[\\s\\x00]", "");
+    if (s.isEmpty())
+      return 0;
+    try {
+      return Long.parseLong(s, 8);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Bad tar header number: "+s);
+    }
+  }
+
+  // Read a NUL-terminated string.
+  private static String string(byte[] h, int off, int len) {
+    int end = off;
+    while (end < off+len && h[end] != 0)
+      end++;
+    return new String(h, off, end-off, UTF8);
+  }
+}
@@ -0,0 +1,112 @@
+package stork.feather.util;
+
+import java.io.*;
+import java.util.*;
+
+import stork.feather.*;
+
+/**
+ * A {@code Tap} which emits several files beneath a root {@code Resource} as
+ * a single tar archive, so that many small files can share one pipeline. The
+ * files are read one after another, each through its own {@code Tap}, and
+ * their data is passed through without being copied. An {@link UntarSink}
+ * can expand the archive on the other end.
+ * <p/>
+ * The size of every file must be known up front, since it goes in the
+ * header. If a file turns out to be a different size, the archive fails.
+ *
+ * @param <S> the source {@code Resource} type.
+ */
+public class TarTap<S extends Resource> extends Tap<S> {
+  private final Iterator<TransferOrder.Entry> entries;
+
+  /**
+   * Create a {@code TarTap} which archives {@code entries}, whose paths are
+   * relative to {@code root}. Each entry must have a {@code Stat} giving its
+   * size (see {@link TransferOrder.Entry#size()}).
+   *
+   * @param root the {@code Resource} the archive is rooted at.
+   * @param entries the files to put in the archive.
+   */
+  public TarTap(S root, List<? extends TransferOrder.Entry> entries) {
+    super(root);
+    this.entries = new ArrayList<TransferOrder.Entry>(entries).iterator();
+  }
+
+  /**
+   * Get the name an entry will have in the archive.
+   *
+   * @param path the path of the entry relative to the root.
+   * @return The name of the entry.
+   */
+  public static String name(Path path) {
+    return path.toString().replaceFirst("^/+", "");
+  }
+
+  protected Bell start(Bell bell) {
+    return bell.new Promise() {
+      public void done() {
+        next();
+      } public void fail(Throwable t) {
+        finish(t);
+      }
+    };
+  }
+
+  /**
+   * Called as file data is emitted, not counting headers and padding. The
+   * default implementation does nothing.
+   *
+   * @param bytes the number of bytes of file data emitted.
+   */
+  protected void progress(long bytes) { }
+
+  // Emit the next entry, or end the archive if there are none left.
+  private synchronized void next() {
+    if (!entries.hasNext()) {
+      drain(new Slice(new byte[2*Tar.BLOCK]));
+      finish();
+      return;
+    }
+
+    final TransferOrder.Entry entry = entries.next();
+    final String name = name(entry.path);
+    final long size = entry.size();
+
+    Tap tap;
+    try {
+      byte[] header = Tar.header(name, size, entry.stat.time);
+      tap = source().select(entry.path).tap();
+      drain(new Slice(header));
+    } catch (Exception e) {
+      finish(e);
+      return;
+    }
+
+    tap.attach(new Sink(source().select(entry.path)) {
+      private long count = 0;
+
+      protected Bell drain(Slice slice) {
+        count += slice.length();
+        if (count > size) {
+          slice.release();
+          return new Bell(new IOException(name+" grew while archiving."));
+        }
+        progress(slice.length());
+        return TarTap.this.drain(slice.offset(-1));
+      } protected void finish(Throwable t) {
+        if (t == null && count != size)
+          t = new IOException(name+" shrank while archiving.");
+        if (t != null) {
+          TarTap.this.finish(t);
+        } else {
+          int pad = Tar.padding(size);
+          if (pad > 0)
+            TarTap.this.drain(new Slice(new byte[pad]));
+          next();
+        }
+      }
+    });
+    tap.start();
+  }
+}
@@ -0,0 +1,233 @@
+package stork.feather.util;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import io.netty.buffer.*;
+
+import stork.feather.*;
+
+/**
+ * A {@code Sink} which feeds every {@code Slice} it receives to several other
+ * {@code Sink}s, so that data read once can be written to several
+ * destinations. The {@code Slice}s are not copied; each branch is given a
+ * view of the same buffer.
+ * <p/>
+ * Each branch has its own flow control window. The {@code Bell} returned by
+ * {@link #drain(Slice)} rings once every live branch has room for more, so
+ * the slowest branch bounds how far ahead the {@code Tap} may read. Giving a
+ * slow branch a larger window with {@link #window(int, long, int)} lets it
+ * fall that far behind the others without holding them back.
+ * <p/>
+ * A branch whose {@code Sink} fails is cut off and finished with the error,
+ * and {@link #failed(int, Throwable)} is called, but the other branches carry
+ * on. The {@code Tee} itself only fails once every branch has failed. It has
+ * only {@link #onFinish() finished} once every branch has.
+ *
+ * @param <D> the destination {@code Resource} type.
+ */
+public class Tee<D extends Resource> extends Sink<D> {
+  private final List<Branch> branches = new ArrayList<Branch>();
+  private int live;
+  private Throwable error;
+
+  // A pipe which feeds one of the sinks.
+  private class Branch extends Pipe {
+    final int index;
+    final Sink<D> sink;
+    boolean cut = false;
+
+    Branch(int index, Sink<D> sink) {
+      this.index = index;
+      this.sink = sink;
+      attach(sink);
+    }
+
+    // Expose the pipe operations to the tee.
+    Bell begin() throws Exception { return start(); }
+    Bell feed(Slice slice) throws Exception { return drain(slice); }
+    void end(Throwable t) { finish(t); }
+
+    protected void failed(Throwable t) { cut(this, t); }
+  }
+
+  // A view of a buffer shared between branches, with its own reader index
+  // and reference count. The shared buffer is released once the tee and
+  // every view have released it.
+  private static class View extends WrappedByteBuf {
+    private final ByteBuf shared;
+    private final AtomicInteger views;
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    View(ByteBuf shared, AtomicInteger views) {
+      super(shared.duplicate());
+      this.shared = shared;
+      this.views = views;
+    }
+
+    static void release(ByteBuf shared, AtomicInteger views) {
+      if (views.decrementAndGet() == 0)
+        shared.release();
+    }
+
+    public int refCnt() { return refs.get(); }
+
+    public ByteBuf retain() { return retain(1); }
+
+    public ByteBuf retain(int increment) {
+      refs.addAndGet(increment);
+      return this;
+    }
+
+    public boolean release() { return release(1); }
+
+    public boolean release(int decrement) {
+      if (refs.addAndGet(-decrement) != 0)
+        return false;
+      release(shared, views);
+      return true;
+    }
+  }
+
+  /**
+   * Create a {@code Tee} which feeds each of {@code sinks}. The destination
+   * of the {@code Tee} is that of the first {@code Sink}.
+   *
+   * @param sinks the {@code Sink}s to feed.
+   * @throws IllegalArgumentException if {@code sinks} is empty.
+   */
+  public Tee(List<? extends Sink<D>> sinks) {
+    super(first(sinks).destination());
+    for (Sink<D> sink : sinks)
+      branches.add(new Branch(branches.size(), sink));
+    live = branches.size();
+  }
+
+  private static <D extends Resource> Sink<D> first(
+      List<? extends Sink<D>> sinks) {
+    if (sinks.isEmpty())
+      throw new IllegalArgumentException("A tee needs at least one sink.");
+    return sinks.get(0);
+  }
+
+  /**
+   * Set the flow control window of one branch. See {@link Pipe#window(long,
+   * int)}.
+   *
+   * @param branch the index of the branch.
+   * @param bytes the number of bytes which may be in flight, or zero for no
+   * limit.
+   * @param slices the number of {@code Slice}s which may be in flight.
+   * @return This {@code Tee}.
+   */
+  public Tee<D> window(int branch, long bytes, int slices) {
+    branches.get(branch).window(bytes, slices);
+    return this;
+  }
+
+  /** Get the number of branches which have not been cut off. */
+  public synchronized int live() { return live; }
+
+  /** The branches take positional writes only if every one of them does. */
+  public boolean random() {
+    for (Branch b : branches)
+      if (!b.sink.random()) return false;
+    return true;
+  }
+
+  protected Bell start() throws Exception {
+    List<Bell<?>> bells = new ArrayList<Bell<?>>();
+    for (Branch b : branches) try {
+      bells.add(isolate(b, b.begin()));
+    } catch (Exception e) {
+      cut(b, e);
+    } return whenAll(bells);
+  }
+
+  protected synchronized Bell drain(Slice slice) throws Exception {
+    List<Bell<?>> bells = new ArrayList<Bell<?>>();
+    ByteBuf buffer = slice.asByteBuf();
+    AtomicInteger views = new AtomicInteger(1);
+    for (Branch b : branches) if (!b.cut) {
+      views.incrementAndGet();
+      Slice view = new Slice(new View(buffer, views), slice.offset());
+      try {
+        bells.add(isolate(b, b.feed(view)));
+      } catch (Exception e) {
+        view.release();
+        cut(b, e);
+      }
+    }
+    View.release(buffer, views);
+    return whenAll(bells);
+  }
+
+  protected synchronized void finish(Throwable t) {
+    for (Branch b : branches)
+      b.end(b.cut ? error : t);
+  }
+
+  /**
+   * Rings once every branch has finished. A branch which fails to finish is
+   * cut off, and this only fails if every branch has been.
+   */
+  public Bell onFinish() {
+    List<Bell<?>> bells = new ArrayList<Bell<?>>();
+    for (Branch b : branches)
+      bells.add(isolate(b, b.onFinish()));
+    return whenAll(bells);
+  }
+
+  /**
+   * Called when a branch is cut off because its {@code Sink} failed. The
+   * default implementation does nothing.
+   *
+   * @param branch the index of the branch.
+   * @param error the error the branch failed with.
+   */
+  protected void failed(int branch, Throwable error) { }
+
+  // Cut off a branch which has failed.
+  private void cut(Branch b, Throwable t) {
+    synchronized (this) {
+      if (b.cut)
+        return;
+      b.cut = true;
+      live--;
+      error = t;
+    } failed(b.index, t);
+  }
+
+  // Wait for a branch's bell, cutting off the branch if it fails.
+  private Bell<?> isolate(final Branch b, Bell bell) {
+    final Bell result = new Bell();
+    if (bell == null)
+      return result.ring();
+    bell.new Promise() {
+      public void done() {
+        result.ring();
+      } public void fail(Throwable t) {
+        cut(b, t);
+        result.ring();
+      }
+    };
+    return result;
+  }
+
+  // Ring once every branch has rung, failing if none are left.
+  private Bell whenAll(List<Bell<?>> bells) {
+    final Bell result = new Bell();
+    Bell all = Bell.all(bells);
+    all.new Promise() {
+      public void always() {
+        synchronized (Tee.this) {
+          if (live > 0)
+            result.ring();
+          else
+            result.ring(error);
+        }
+      }
+    };
+    return result;
+  }
+}
@@ -0,0 +1,79 @@
+package stork.feather.util;
+
+import java.util.*;
+
+import stork.feather.*;
+
+/**
+ * A {@code Pipe} which limits the rate data flows through it using {@link
+ * TokenBucket}s. Each {@code Slice} takes its length in tokens from every
+ * bucket, and is held back until the slowest bucket allows it. Nothing
+ * blocks while a {@code Slice} is held; it is passed on when a timer {@code
+ * Bell} rings, and the {@code Bell} returned by {@link #drain(Slice)} rings
+ * once it has been passed on.
+ * <p/>
+ * {@code Slice}s are always passed on in the order they arrive.
+ */
+public class ThrottlePipe extends Pipe {
+  private final List<TokenBucket> buckets;
+  private Bell last;
+
+  /**
+   * Create a {@code ThrottlePipe} which takes from each of {@code buckets}.
+   * The buckets' ancestors are taken from too, so a bucket shouldn't be
+   * given along with one of its descendants.
+   *
+   * @param buckets the buckets to take from.
+   */
+  public ThrottlePipe(List<TokenBucket> buckets) {
+    this.buckets = new ArrayList<TokenBucket>(buckets);
+  }
+
+  protected synchronized Bell drain(final Slice slice) throws Exception {
+    double wait = 0;
+    for (TokenBucket b : buckets)
+      wait = Math.max(wait, b.take(slice.length()));
+
+    if (wait <= 0 && last == null)
+      return super.drain(slice);
+
+    // Wait for the tokens, and for any slices ahead of this one.
+    Bell ready = Bell.timerBell(wait);
+    if (last != null)
+      ready = ready.and(last);
+    final Bell forwarded = last = new Bell();
+    final Bell credit = new Bell();
+    ready.new Promise() {
+      public void always() {
+        try {
+          Bell next = forward(slice, forwarded);
+          if (next == null)
+            credit.ring();
+          else
+            next.promise(credit);
+        } catch (Exception e) {
+          credit.ring(e);
+        } forwarded.ring();
+      }
+    };
+    return credit;
+  }
+
+  // Pass on a held slice.
+  private synchronized Bell forward(Slice slice, Bell forwarded)
+  throws Exception {
+    if (last == forwarded)
+      last = null;
+    return super.drain(slice);
+  }
+
+  protected synchronized void finish(final Throwable t) {
+    if (last == null) {
+      super.finish(t);
+    } else last.new Promise() {
+      public void always() {
+        ThrottlePipe.super.finish(t);
+      }
+    };
+  }
+}
@@ -1,15 +1,25 @@
 package stork.feather.util;
 
+import java.util.concurrent.atomic.*;
+
 import static stork.feather.util.Time.*;
 
 /**
  * A class for keeping track of instantaneous throughput. Also provides some
  * utility methods for formatting throughput.
+ * <p/>
+ * Updates only add to a {@link StripedLong}, so they may come from many
+ * threads at once without contending. The amounts are folded into the
+ * estimate on a fixed tick of a tenth of the quantum, by whichever update
+ * first finds the tick has passed, so the estimate doesn't depend on how
+ * often it is read.
  */
 public class Throughput {
   private long t = now();  // Time of last sample.
   private double q;        // Time quantum (in ms).
   private double th = 0;   // Running throughput estimate.
+  private final StripedLong pending = new StripedLong();
+  private final AtomicLong foldAt = new AtomicLong(t);  // Time of next fold.
 
   /** Create a {@code Throughput} with the default quantum (3000ms). */
   public Throughput() { this(1E3); }
@@ -26,11 +36,21 @@ public class Throughput {
   }
 
   /** Update the throughput estimation with the given amount. */
-  public synchronized void update(double amount) {
+  public void update(double amount) {
     if (q <= 0) return;
-    long now = now();
-    double d = now-t;
-    t = now;
+    pending.add((long) amount);
+    long now = now(), at = foldAt.get();
+    if (now >= at && foldAt.compareAndSet(at, now+(long) Math.ceil(q/10)))
+      synchronized (this) { fold(now); }
+  }
+
+  // Fold the amounts updated since the last fold into the estimate, as a
+  // sample taken at the given time.
+  private void fold(long time) {
+    long amount = pending.sumThenReset();
+    if (amount == 0) return;
+    double d = Math.max(time-t, 0);
+    t = Math.max(time, t);
     th = (d > q) ? amount/q : th*(1-d/q) + amount/q;
     if (Double.isInfinite(th) || Double.isNaN(th))
       th = 0;
@@ -39,6 +59,8 @@ public class Throughput {
   /** Get the throughput in units per second. */
   public synchronized double value() {
     if (q <= 0) return th;
+    // Anything still pending was updated before the next fold was due.
+    fold(Math.min(now(), foldAt.get()));
     double d = now()-t;
     double v = (d > q) ? 0 : th*(1-d/q)*1000;
     return (Double.isInfinite(v) || Double.isNaN(v)) ? 0 : v;
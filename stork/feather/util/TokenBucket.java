@@ -0,0 +1,103 @@
+package stork.feather.util;
+
+/**
+ * A token bucket for limiting the rate data is transferred at. Tokens are
+ * bytes, and are added at the bucket's rate up to its burst size. Buckets
+ * may be nested, so that taking from a bucket also takes from its parent,
+ * and the slowest bucket in the chain sets the pace.
+ * <p/>
+ * Taking never blocks. Tokens may be taken even when the bucket is empty,
+ * leaving it in debt, and the caller is told how long to wait before using
+ * them. Since later callers inherit the debt, callers are served in the
+ * order they took. The rate may be changed at any time.
+ *
+ * @see ThrottlePipe
+ */
+public class TokenBucket {
+  private final TokenBucket parent;
+  private double rate, burst;
+  private double tokens = 0;
+  private long time = System.nanoTime();
+
+  /** Create an unlimited {@code TokenBucket} with no parent. */
+  public TokenBucket() { this(null); }
+
+  /**
+   * Create an unlimited {@code TokenBucket} which also takes from {@code
+   * parent}.
+   *
+   * @param parent the parent bucket, or {@code null}.
+   */
+  public TokenBucket(TokenBucket parent) {
+    this.parent = parent;
+  }
+
+  /** Get the parent of this bucket, or {@code null} if it has none. */
+  public TokenBucket parent() { return parent; }
+
+  /** Check if this bucket or any of its ancestors has a rate limit. */
+  public boolean limited() {
+    for (TokenBucket b = this; b != null; b = b.parent)
+      if (b.rate() > 0) return true;
+    return false;
+  }
+
+  /** Get the rate of this bucket in bytes per second, or zero if unlimited. */
+  public synchronized double rate() { return rate; }
+
+  /**
+   * Set the rate of this bucket. The burst size is set to one second's worth
+   * of tokens.
+   *
+   * @param rate the rate in bytes per second, or zero or less for no limit.
+   * @return This {@code TokenBucket}.
+   */
+  public synchronized TokenBucket rate(double rate) {
+    return rate(rate, rate);
+  }
+
+  /**
+   * Set the rate and burst size of this bucket.
+   *
+   * @param rate the rate in bytes per second, or zero or less for no limit.
+   * @param burst the most tokens which may accumulate, in bytes.
+   * @return This {@code TokenBucket}.
+   */
+  public synchronized TokenBucket rate(double rate, double burst) {
+    refill();
+    this.rate = Math.max(rate, 0);
+    this.burst = Math.max(burst, 0);
+    tokens = Math.min(tokens, this.burst);
+    return this;
+  }
+
+  /**
+   * Take tokens from this bucket and its ancestors.
+   *
+   * @param bytes the number of tokens to take.
+   * @return The number of seconds to wait before using the tokens, which is
+   * zero if they may be used immediately.
+   */
+  public double take(long bytes) {
+    double wait;
+    synchronized (this) {
+      refill();
+      if (rate <= 0) {
+        wait = 0;
+      } else {
+        tokens -= bytes;
+        wait = (tokens < 0) ? -tokens/rate : 0;
+      }
+    } if (parent != null) {
+      wait = Math.max(wait, parent.take(bytes));
+    } return wait;
+  }
+
+  // Add tokens for the time since the last refill.
+  private void refill() {
+    long now = System.nanoTime();
+    if (rate > 0)
+      tokens = Math.min(burst, tokens + rate*(now-time)/1E9);
+    time = now;
+  }
+}
@@ -0,0 +1,261 @@
+package stork.feather.util;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A record of the {@code Bell}s involved in some piece of work, such as a
+ * job, for finding out where its time goes. A trace is split into {@link
+ * Span}s, such as one per file. Each {@code Bell} created while a span is
+ * entered, or while the handlers of a traced {@code Bell} are running, is
+ * traced as part of the same span, and records when it was created, when it
+ * rang, and when its handlers and promises were dispatched.
+ * <p/>
+ * Each traced {@code Bell} also records which traced {@code Bell}'s
+ * handlers rang it, if any. Following these links back from the last {@code
+ * Bell} to ring in a span gives the span's critical path: the chain of waits
+ * which decided when it finished. A {@code Bell} rung from outside any
+ * traced handler, such as by a network event, is followed back to whatever
+ * created it instead.
+ * <p/>
+ * Tracing is only switched on while a trace is open. Otherwise, it costs a
+ * {@code Bell} a single check when it is created and dispatched.
+ */
+public class Trace {
+  // The number of open traces. Tracing is enabled while this is nonzero.
+  private static final AtomicInteger open = new AtomicInteger();
+  private static volatile boolean enabled = false;
+
+  // The event whose handlers are running on the current thread, or the root
+  // of the span entered on it.
+  private static final ThreadLocal<Event> current = new ThreadLocal<Event>();
+
+  // The most spans kept, and the longest critical path written.
+  private static final int MAX_SPANS = 10000, MAX_PATH = 200;
+
+  public final String name;
+  private final long start = System.nanoTime();
+  private final List<Span> spans = new ArrayList<Span>();
+  private int dropped = 0;
+  private volatile boolean finished = false;
+
+  /**
+   * Open a trace with the given name. Tracing is enabled until it is
+   * {@link #finish() finished}.
+   *
+   * @param name a name for the trace, such as a job ID.
+   */
+  public Trace(String name) {
+    this.name = name;
+    open.incrementAndGet();
+    enabled = true;
+  }
+
+  /** Check if any trace is open. */
+  public static boolean enabled() { return enabled; }
+
+  /**
+   * Stop tracing for this trace. Spans already recorded are kept, and bells
+   * already traced keep recording. This does nothing if it has already been
+   * called.
+   */
+  public synchronized void finish() {
+    if (finished)
+      return;
+    finished = true;
+    if (open.decrementAndGet() == 0)
+      enabled = false;
+  }
+
+  /**
+   * Start a span in this trace. Nothing is traced as part of the span until
+   * it is {@link Span#enter() entered}.
+   *
+   * @param name a name for the span, such as a file path.
+   * @return The new span.
+   */
+  public synchronized Span span(String name) {
+    Span span = new Span(name);
+    if (spans.size() < MAX_SPANS)
+      spans.add(span);
+    else
+      dropped++;
+    return span;
+  }
+
+  /**
+   * Get a traced event for a {@code Bell} being created, if it is being
+   * created in a traced context. Called by {@code Bell}.
+   *
+   * @param type the class of the {@code Bell}.
+   * @return The event, or {@code null} if the {@code Bell} isn't traced.
+   */
+  public static Event created(Class type) {
+    Event creator = current.get();
+    if (creator == null || creator.span.trace().finished)
+      return null;
+    return new Event(creator.span, type, creator);
+  }
+
+  /**
+   * Make {@code event} the current event on this thread, such as while the
+   * handlers of its {@code Bell} run. Called by {@code Bell}.
+   *
+   * @param event the event to make current, which may be {@code null}.
+   * @return The previously current event, to be passed to {@link
+   * #exit(Event)}.
+   */
+  public static Event enter(Event event) {
+    Event previous = current.get();
+    current.set(event);
+    if (event != null)
+      event.dispatched();
+    return previous;
+  }
+
+  /**
+   * Restore the event that was current before {@link #enter(Event)}.
+   *
+   * @param previous the value returned by {@code enter(Event)}.
+   */
+  public static void exit(Event previous) {
+    current.set(previous);
+  }
+
+  /** A group of traced {@code Bell}s, such as for one file. */
+  public class Span {
+    public final String name;
+    private final Event root;
+    private final AtomicLong queued = new AtomicLong();
+    private int count = 0;
+    private Event last;
+
+    private Span(String name) {
+      this.name = name;
+      root = new Event(this, null, null);
+      root.rang = root.dispatched = root.created;
+      last = root;
+    }
+
+    /** Get the trace this span belongs to. */
+    public Trace trace() { return Trace.this; }
+
+    /**
+     * Trace {@code Bell}s created on this thread as part of this span, until
+     * {@link #exit(Event)} is called.
+     *
+     * @return The previously current event, to be passed to {@code exit()}.
+     */
+    public Event enter() { return Trace.enter(root); }
+
+    /** Get the nanoseconds from the start of the span to its last event. */
+    public synchronized long duration() { return last.rang-root.created; }
+
+    // Note that an event in this span rang.
+    private synchronized void rang(Event event) {
+      count++;
+      if (event.rang >= last.rang)
+        last = event;
+    }
+
+    // Note how long an event waited to be dispatched.
+    private void queued(long nanos) { queued.addAndGet(nanos); }
+
+    /** Write this span and its critical path to {@code out}. */
+    public synchronized StringBuilder write(StringBuilder out) {
+      out.append(String.format("%s: %.3f ms, %d bells, %.3f ms queued\n",
+        name, ms(duration()), count, ms(queued.get())));
+
+      // Walk back from the last event, then write the path in order.
+      LinkedList<Event> path = new LinkedList<Event>();
+      Event e = last;
+      for (; e != null && path.size() < MAX_PATH; e = e.cause())
+        path.addFirst(e);
+      if (e != null)
+        out.append("  ...\n");
+
+      out.append("  created     rang      run  (ms)\n");
+      for (Event p : path) {
+        out.append(String.format("  %7.3f  %7.3f  %7.3f  %s\n",
+          ms(p.created-root.created), ms(p.rang-root.created),
+          ms((p.dispatched == 0 ? p.rang : p.dispatched)-root.created),
+          p.describe()));
+      } return out;
+    }
+  }
+
+  /** The record of a traced {@code Bell}. */
+  public static final class Event {
+    private final Span span;
+    private final Class type;
+    private final Event creator;
+    private final long created = System.nanoTime();
+    private volatile long rang, dispatched;
+    private volatile Event ringer;
+
+    private Event(Span span, Class type, Event creator) {
+      this.span = span;
+      this.type = type;
+      this.creator = creator;
+    }
+
+    /** Note that the {@code Bell} rang. Called by {@code Bell}. */
+    public void rang() {
+      ringer = current.get();
+      rang = System.nanoTime();
+      span.rang(this);
+    }
+
+    // Note that the bell's handlers or promises are about to run.
+    private void dispatched() {
+      if (dispatched == 0) {
+        dispatched = System.nanoTime();
+        if (rang != 0)
+          span.queued(dispatched-rang);
+      }
+    }
+
+    // Get the event this one waited on: whatever rang it, if it was rung by
+    // a traced handler, or else whatever created it.
+    private Event cause() {
+      Event r = ringer;
+      return (r != null && r != this) ? r : creator;
+    }
+
+    private String describe() {
+      if (type == null)
+        return "span "+span.name;
+      if (ringer == null)
+        return type.getName()+" (rung externally)";
+      return type.getName();
+    }
+  }
+
+  private static double ms(long nanos) { return nanos/1E6; }
+
+  /**
+   * Write the {@code limit} slowest spans of this trace and their critical
+   * paths to {@code out}.
+   */
+  public synchronized StringBuilder write(StringBuilder out, int limit) {
+    List<Span> sorted = new ArrayList<Span>(spans);
+    Collections.sort(sorted, new Comparator<Span>() {
+      public int compare(Span a, Span b) {
+        return Long.compare(b.duration(), a.duration());
+      }
+    });
+
+    out.append(String.format("trace %s: %.3f ms, %d spans",
+      name, ms(System.nanoTime()-start), spans.size()+dropped));
+    if (dropped > 0)
+      out.append(" (").append(dropped).append(" not kept)");
+    out.append('\n');
+    for (Span s : sorted.subList(0, Math.min(limit, sorted.size())))
+      s.write(out);
+    return out;
+  }
+
+  public String toString() {
+    return write(new StringBuilder(), 10).toString();
+  }
+}
@@ -12,12 +12,22 @@ public class TransferInfo {
   public double avg;
   /** Instantaneous throughput. */
   public double inst;
+  /** Size of the most recent chunk. */
+  public long chunk;
+  /** Number of chunks transferred. */
+  public long chunks;
 
   /** Update based on the given information. */
-  public void update(Time time, Progress p, Throughput tp) {
+  public synchronized void update(Time time, Progress p, Throughput tp) {
     done = p.done();
     total = p.total();
-    avg = p.rate(time).value();
+    avg = (time == null) ? 0 : p.rate(time).value();
     inst = tp.value();
   }
+
+  /** Update the most recent chunk size and the number of chunks. */
+  public synchronized void chunks(long size, long count) {
+    chunk = size;
+    chunks = count;
+  }
 }
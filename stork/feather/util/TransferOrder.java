@@ -0,0 +1,173 @@
+package stork.feather.util;
+
+import java.util.*;
+
+import stork.feather.*;
+
+/**
+ * The order in which a {@code ProxyTransfer} starts pending resources. The
+ * base policy starts resources in the order they were discovered. Subclasses
+ * may order files by size, using the {@code Stat}s that came with the parent
+ * directory's listing.
+ * <p/>
+ * Entries which are not known to be files (directories, and files whose
+ * listing did not say how large they are) are always started before sized
+ * files, in discovery order, since listing directories is cheap and reveals
+ * more work to choose from.
+ * <p/>
+ * A {@code TransferOrder} should only be used by one transfer at a time.
+ */
+public class TransferOrder {
+  private final LinkedList<Entry> unsized = new LinkedList<Entry>();
+  private long sequence = 0;
+
+  /** A resource waiting to be transferred. */
+  public static class Entry {
+    /** The path of the resource, relative to the transfer root. */
+    public final Path path;
+    /** What is known about the resource, or {@code null}. */
+    public final Stat stat;
+    private long order;
+
+    public Entry(Path path, Stat stat) {
+      this.path = path;
+      this.stat = stat;
+    }
+
+    /** Get the size of the file, or -1 if it is not known to be a file. */
+    public long size() {
+      if (stat == null || stat.partial || !stat.file || stat.dir)
+        return -1;
+      return stat.size;
+    }
+
+    public String toString() { return path.toString(); }
+  }
+
+  /**
+   * Add an entry to the queue.
+   *
+   * @param entry the entry to add.
+   * @param first whether the entry should go ahead of entries discovered
+   * before it, which is done for entries found in a listing.
+   */
+  public synchronized void add(Entry entry, boolean first) {
+    entry.order = sequence++;
+    if (entry.size() >= 0 && addSized(entry))
+      return;
+    if (first)
+      unsized.addFirst(entry);
+    else
+      unsized.add(entry);
+  }
+
+  /**
+   * Remove and return the next entry to start, or {@code null} if the queue
+   * is empty.
+   */
+  public synchronized Entry poll() {
+    if (!unsized.isEmpty())
+      return unsized.poll();
+    return pollSized();
+  }
+
+  /** Get the number of entries in the queue. */
+  public synchronized int size() {
+    return unsized.size() + sizedCount();
+  }
+
+  /**
+   * Called by the transfer when the resource at {@code path} has ended, so
+   * that policies may track what is in flight.
+   */
+  public void ended(Path path) { }
+
+  // Hooks for sized policies. By default, sized entries are not treated
+  // specially.
+  boolean addSized(Entry entry) { return false; }
+  Entry pollSized() { return null; }
+  int sizedCount() { return 0; }
+
+  // A policy which keeps sized entries ordered by size, ties broken by
+  // discovery order.
+  private static abstract class BySize extends TransferOrder {
+    final TreeSet<Entry> sized = new TreeSet<Entry>(new Comparator<Entry>() {
+      public int compare(Entry a, Entry b) {
+        long s = a.size(), t = b.size();
+        if (s != t)
+          return (s < t) ? -1 : 1;
+        return (a.order < b.order) ? -1 : (a.order > b.order) ? 1 : 0;
+      }
+    });
+
+    boolean addSized(Entry entry) { return sized.add(entry); }
+    int sizedCount() { return sized.size(); }
+  }
+
+  /** Start resources in the order they are discovered. */
+  public static TransferOrder discovery() {
+    return new TransferOrder();
+  }
+
+  /**
+   * Start the largest files first. This keeps a single large file from being
+   * left to run on its own at the end, and so minimizes the total time.
+   */
+  public static TransferOrder largestFirst() {
+    return new BySize() {
+      Entry pollSized() { return sized.pollLast(); }
+    };
+  }
+
+  /**
+   * Start the smallest files first. This completes as many files as possible
+   * as early as possible.
+   */
+  public static TransferOrder smallestFirst() {
+    return new BySize() {
+      Entry pollSized() { return sized.pollFirst(); }
+    };
+  }
+
+  /**
+   * Keep one of the largest files in flight at all times, and fill the rest
+   * of the concurrency with the smallest files.
+   */
+  public static TransferOrder mixed() {
+    return new BySize() {
+      private Path large;
+
+      Entry pollSized() {
+        if (large != null)
+          return sized.pollFirst();
+        Entry entry = sized.pollLast();
+        if (entry != null)
+          large = entry.path;
+        return entry;
+      } public synchronized void ended(Path path) {
+        if (path.equals(large))
+          large = null;
+      }
+    };
+  }
+
+  /**
+   * Get a policy by name. The names are {@code discovery}, {@code largest},
+   * {@code smallest}, and {@code mixed}.
+   *
+   * @param name the name of the policy, or {@code null} for the default.
+   * @return A new {@code TransferOrder} implementing the named policy.
+   * @throws IllegalArgumentException if the name is not recognized.
+   */
+  public static TransferOrder byName(String name) {
+    if (name == null || name.equals("discovery"))
+      return discovery();
+    if (name.equals("largest"))
+      return largestFirst();
+    if (name.equals("smallest"))
+      return smallestFirst();
+    if (name.equals("mixed"))
+      return mixed();
+    throw new IllegalArgumentException("Unknown transfer order: "+name);
+  }
+}
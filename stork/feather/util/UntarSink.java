@@ -0,0 +1,191 @@
+package stork.feather.util;
+
+import java.io.*;
+
+import io.netty.buffer.*;
+
+import stork.feather.*;
+
+/**
+ * A {@code Sink} which expands a tar archive, such as one emitted by {@link
+ * TarTap}, beneath its destination. Each file in the archive is written
+ * through the {@code Sink} of the {@code Resource} it names. Data which lies
+ * entirely within a file is passed on without being copied; only the parts
+ * of {@code Slice}s which straddle a header are copied.
+ * <p/>
+ * Files are written one after another, and the {@code Bell} returned by
+ * {@link #drain(Slice)} follows the flow control of the file currently being
+ * written. If any file fails, the archive fails. The archive has only {@link
+ * #onFinish() finished} once every file in it has.
+ *
+ * @param <D> the destination {@code Resource} type.
+ */
+public class UntarSink<D extends Resource> extends Sink<D> {
+  private final byte[] header = new byte[Tar.BLOCK];
+  private int filled = 0;      // Bytes of the current header read.
+  private long remaining = 0;  // Bytes of the current entry left to read.
+  private int skip = 0;        // Bytes of padding left to skip.
+  private boolean ended = false;
+  private Entry entry;
+  private Bell last = Bell.rungBell();
+  private Throwable error;
+
+  // Files and directories still being written, and whether the archive has
+  // been finished. See onFinish().
+  private int open = 0;
+  private boolean finished = false;
+  private final Bell onFinish = new Bell();
+
+  // A tap which feeds one file from the archive to its sink.
+  private class Entry extends Tap {
+    final String name;
+
+    Entry(String name, Resource resource) {
+      super(resource);
+      this.name = name;
+      attach(resource.sink());
+    }
+
+    protected Bell start(Bell bell) { return bell; }
+
+    // Expose the pipe operations to the archive.
+    Bell feed(Slice slice) { return drain(slice); }
+    void end(Throwable t) { finish(t); }
+
+    protected void failed(Throwable t) { fail(t); }
+  }
+
+  /**
+   * Create an {@code UntarSink} which expands an archive beneath {@code
+   * destination}.
+   *
+   * @param destination the directory to expand the archive in.
+   */
+  public UntarSink(D destination) {
+    super(destination);
+  }
+
+  protected synchronized Bell drain(Slice slice) throws Exception {
+    ByteBuf buf = slice.asByteBuf();
+    boolean passed = false;
+
+    try {
+      while (error == null && buf.isReadable()) {
+        int readable = buf.readableBytes();
+        if (remaining > 0) {
+          int n = (int) Math.min(remaining, readable);
+          if (n == readable) {
+            last = entry.feed(slice.offset(-1));
+            passed = true;
+          } else {
+            last = entry.feed(new Slice(buf.readBytes(n)));
+          }
+          if ((remaining -= n) == 0)
+            endEntry(null);
+          if (passed)
+            break;
+        } else if (skip > 0) {
+          int n = Math.min(skip, readable);
+          buf.skipBytes(n);
+          skip -= n;
+        } else if (ended) {
+          buf.skipBytes(readable);
+        } else {
+          int n = Math.min(Tar.BLOCK-filled, readable);
+          buf.readBytes(header, filled, n);
+          if ((filled += n) == Tar.BLOCK) {
+            filled = 0;
+            beginEntry();
+          }
+        }
+      }
+    } catch (Exception e) {
+      fail(e);
+    } finally {
+      if (!passed)
+        slice.release();
+    }
+
+    return (error != null) ? new Bell(error) : last;
+  }
+
+  // Start the entry described by the header just read.
+  private void beginEntry() {
+    if (Tar.isEnd(header)) {
+      ended = true;
+      return;
+    }
+
+    Tar.Header h = Tar.parse(header);
+    Resource r = destination().select(Path.create(h.name));
+
+    if (h.dir) {
+      await(last = r.mkdir());
+      return;
+    }
+
+    entry = new Entry(h.name, r);
+    await(entry.onFinish());
+    entry.start();
+    remaining = h.size;
+    skip = Tar.padding(h.size);
+    if (remaining == 0)
+      endEntry(null);
+  }
+
+  private void endEntry(Throwable t) {
+    entry.end(t);
+    entry = null;
+  }
+
+  // Record the first error from an entry.
+  private synchronized void fail(Throwable t) {
+    if (error == null)
+      error = t;
+  }
+
+  // Wait for a file or directory to finish being written, failing the
+  // archive if it fails.
+  private synchronized void await(Bell bell) {
+    open++;
+    bell.new Promise() {
+      public void fail(Throwable t) {
+        UntarSink.this.fail(t);
+      } public void always() {
+        synchronized (UntarSink.this) {
+          open--;
+          check();
+        }
+      }
+    };
+  }
+
+  // Ring onFinish once finished and nothing is still being written. Must
+  // hold lock.
+  private void check() {
+    if (!finished || open > 0 || onFinish.isDone())
+      return;
+    if (error == null)
+      onFinish.ring();
+    else
+      onFinish.ring(error);
+  }
+
+  protected synchronized void finish(Throwable t) {
+    if (entry != null) {
+      if (t == null)
+        t = new EOFException("Archive ended in the middle of "+entry.name);
+      endEntry(t);
+    } if (t != null) {
+      fail(t);
+    }
+    finished = true;
+    check();
+  }
+
+  /**
+   * Rings once every file in the archive has been written, or fails if any
+   * couldn't be.
+   */
+  public Bell onFinish() { return onFinish.detach(); }
+}
@@ -112,7 +112,11 @@ public class DbxResource extends Resource<DbxSession, DbxResource> {
     protected Bell drain(final Slice slice) {
       return new ThreadBell<Void>() {
         public Void run() throws Exception {
-          upload.getBody().write(slice.asBytes());
+          try {
+            upload.getBody().write(slice.asBytes());
+          } finally {
+            slice.release();
+          }
           return null;
         }
       }.start();
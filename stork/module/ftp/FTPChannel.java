@@ -22,6 +22,7 @@ import org.gridforum.jgss.*;
 import stork.feather.*;
 import stork.feather.errors.*;
 import stork.feather.URI;
+import stork.feather.util.Recording;
 import stork.util.*;
 
 /**
@@ -777,10 +778,14 @@ public class FTPChannel {
     Log.finer("Feeding handler: ", handler);
 
     // Now we can call the handlers.
-    if (reply.isPreliminary())
+    if (reply.isPreliminary()) {
       handler.handle(reply);
-    else
+    } else {
+      Recording.Event event = handler.event;
+      if (event != null)
+        event.set("command", handler).set("code", reply.code).commit();
       handler.ring(reply);
+    }
     if (syncs != null) for (Command sync : syncs)
       sync.ring();
   }
@@ -887,6 +892,7 @@ public class FTPChannel {
         deferred.add(this);
         Log.finer(FTPChannel.this.hashCode()+": Deferring "+this);
       } else {
+        if (verb != null) cmd.event = Recording.begin("ftp.command");
         addHandler(cmd);
         if (verb != null) channel().writeAndFlush(this);
         Log.finer(FTPChannel.this.hashCode()+": Sending "+this);
@@ -925,6 +931,8 @@ public class FTPChannel {
   public class Command extends Bell<Reply> {
     private final boolean isSync;
     private String debugString;
+    // Times the round trip once sent, if recording. See Recording.
+    private volatile Recording.Event event;
 
     /**
      * Constructing this will automatically cause the given command to be
@@ -1173,6 +1181,8 @@ public class FTPChannel {
       return lastSend = dc.new Promise() {
         public void done(SocketChannel ch) {
           ch.writeAndFlush(slice.asByteBuf());
+        } public void fail(Throwable t) {
+          slice.release();
         }
       }.and(writeBell);
     }
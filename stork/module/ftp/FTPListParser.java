@@ -314,6 +314,9 @@ public class FTPListParser extends Bell<Stat> {
           stat.file = !dir;
           stat.perm = perm;
           stat.link = link;
+          // The size and type of a link are its own, not its target's, so
+          // it has to be stat'ed before it is transferred.
+          stat.partial = link != null;
 
           list_type = 'U';
           return stat;
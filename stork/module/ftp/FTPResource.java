@@ -208,7 +208,11 @@ public class FTPResource extends Resource<FTPSession, FTPResource> {
             return new Command(cmd, makePath()).expectComplete();
           } public void receive(Slice slice) {
             gotNothing = false;
-            parser.write(slice.asBytes());
+            try {
+              parser.write(slice.asBytes());
+            } finally {
+              slice.release();
+            }
           }
         };
       }
@@ -256,6 +260,10 @@ public class FTPResource extends Resource<FTPSession, FTPResource> {
     return new FTPTap(this);
   }
 
+  public Tap<FTPResource> tap(long offset, long length) {
+    return new FTPTap(this, offset, length);
+  }
+
   // Stringify and relativize a path.
   String makePath() {
     String p = path.toString();
@@ -268,23 +276,57 @@ public class FTPResource extends Resource<FTPSession, FTPResource> {
 }
 
 /**
- * An FTP {@code Tap} which manages data channels autonomonously.
+ * An FTP {@code Tap} which manages data channels autonomonously. A {@code
+ * FTPTap} for a limited range of a file uses a session of its own, so that
+ * several can run in parallel, and so that the data channel can be cut off
+ * once the range has been read without disturbing anyone else.
  */
 class FTPTap extends Tap<FTPResource> {
   private FTPChannel.DataChannel dc;
+  private final long offset, length;
+  private long received = 0;
+  private FTPSession session;  // Only set if this tap has its own session.
 
-  public FTPTap(FTPResource resource) { super(resource); }
+  public FTPTap(FTPResource resource) { this(resource, 0, -1); }
+
+  public FTPTap(FTPResource resource, long offset, long length) {
+    super(resource);
+    this.offset = offset;
+    this.length = length;
+  }
 
   protected Bell start(final Bell bell) {
     final Bell<Object> returnBell = new Bell<Object>();
-    bell.and(source().initialize()).new Promise() {
+    final FTPResource resource;
+
+    if (length < 0) {
+      resource = source();
+    } else {
+      FTPSession s = source().session;
+      session = new FTPSession(s.uri, s.credential);
+      resource = source().reselectOn(session);
+    }
+
+    bell.and(resource.initialize()).new Promise() {
       public void done() {
-        dc = source().session.channel.new DataChannel('I') {
+        dc = resource.session.channel.new DataChannel('I') {
           public Bell init() {
-            String path = source().makePath();
-            return new Command("RETR", path).expectComplete();
+            final String path = resource.makePath();
+            if (offset <= 0)
+              return new Command("RETR", path).expectComplete();
+            // Only retrieve once the server has agreed to restart at offset.
+            return new Command("REST", offset).expectIncomplete().
+              new AsBell<FTPChannel.Reply>() {
+                public Bell<FTPChannel.Reply> convert(FTPChannel.Reply r) {
+                  return new Command("RETR", path).expectComplete();
+                }
+              };
           } public void receive(Slice slice) {
-            pauseUntil(drain(slice));
+            slice = limit(slice);
+            if (slice != null)
+              pauseUntil(drain(slice));
+            if (length >= 0 && received >= length)
+              close();
           }
         };
         dc.start();
@@ -293,10 +335,37 @@ class FTPTap extends Tap<FTPResource> {
           public void done()            { finish();  }
           public void fail(Throwable t) { finish(t); }
         };
+      } public void fail(Throwable t) {
+        // Nothing was started, so just give up the session opened for it.
+        returnBell.ring(t);
+        if (session != null)
+          session.close();
       }
     };
     return returnBell;
   }
+
+  // Trim a slice to the range being read, and count what has been received.
+  // Returns null if nothing remains.
+  private Slice limit(Slice slice) {
+    if (length >= 0 && received+slice.length() > length) {
+      int keep = (int) (length-received);
+      if (keep <= 0) {
+        slice.release();
+        return null;
+      }
+      ByteBuf buf = slice.asByteBuf();
+      buf.writerIndex(buf.readerIndex()+keep);
+    }
+    received += slice.length();
+    return slice;
+  }
+
+  protected void finish(Throwable t) {
+    super.finish(t);
+    if (session != null)
+      session.close();
+  }
 }
 
 /**
@@ -143,7 +143,7 @@ public class HTTPBuilder {
             HTTPChannel channel = (HTTPChannel) this.get();
             HTTPBuilder.this.channel = channel;
             channel.addChannelTask(localTap);
-            channel.writeAndFlush(prepareGet(localTap.getPath().toString()));
+            channel.writeAndFlush(prepareGet(localTap));
           } catch (ExecutionException e) {
             System.err.println(e.getMessage());
             HTTPBuilder.this.channel.clear();
@@ -246,6 +246,19 @@ public class HTTPBuilder {
     return prepareRequest("GET", path);
   }
 
+  /**
+   * Prepares GET request message for the resource and range a tap wants.
+   * 
+   * @param tap the tap the request is being made for
+   * @return Message to be sent
+   */
+  protected HttpRequest prepareGet(HTTPTap tap) {
+    HttpRequest request = prepareGet(tap.getPath());
+    if (tap.isRanged())
+      request.headers().set(HttpHeaders.Names.RANGE, tap.range());
+    return request;
+  }
+
   /**
    * Prepares HEAD request message to be sent.
    * 
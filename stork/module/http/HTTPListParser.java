@@ -76,6 +76,7 @@ public class HTTPListParser {
     Stat stat = new Stat(name);
     stat.dir = dir;
     stat.file = !dir;
+    stat.partial = true;  // Guessed from the link, and no size.
     return stat;
   }
 }
@@ -87,7 +87,18 @@ public class HTTPMessageHandler extends ChannelHandlerAdapter {
 
       caseHandler(resp, ch);
 
-      if (status == Status.Content) {
+      // A server which ignores the range would send the whole resource.
+      if (status == Status.Content && tap.isRanged() &&
+          resp.getStatus().code() != 206) {
+        HTTPException e = new HTTPException(
+          "Server does not support byte ranges: "+resp.getStatus());
+        status = Status.NotFound;
+        tap.onStartBell.ring(e);
+        tap.finish(e);
+      }
+
+      // The headers of a partial response describe only the range.
+      if (status == Status.Content && !tap.isRanged()) {
         if (!tap.hasStat()) {
           // The resource this tap belongs to has not 
           // received meta data yet. Do it now.
@@ -113,7 +124,16 @@ public class HTTPMessageHandler extends ChannelHandlerAdapter {
         // Ring the bell once the received data is ready
         tap.onStartBell.ring();
 
-        tap.drain(slice);
+        // Stop reading until the pipeline, or the memory budget, has room.
+        Bell bell = tap.drain(slice);
+        if (!bell.isDone()) {
+          ch.setReadable(false);
+          bell.new Promise() {
+            public void always() { ch.setReadable(true); }
+          };
+        }
+      } else {
+        content.release();
       }
 
       if (content instanceof LastHttpContent) {
@@ -202,7 +222,7 @@ public class HTTPMessageHandler extends ChannelHandlerAdapter {
       tap.setPath(uri.path()+suffix);
       if (builder.isKeepAlive()) {
         channel.addChannelTask(tap);
-        channel.writeAndFlush(builder.prepareGet(tap.getPath().toString()));
+        channel.writeAndFlush(builder.prepareGet(tap));
       } else {
         builder.tryResetConnection(tap);
       }
@@ -27,6 +27,18 @@ public class HTTPResource extends Resource<HTTPSession, HTTPResource> {
     return new HTTPTap();
   }
 
+  /**
+   * Get a {@code Tap} which requests a byte range of this resource. Taps for
+   * a limited range use a session of their own so that they can run in
+   * parallel with one another.
+   */
+  public HTTPTap tap(long offset, long length) {
+    if (length < 0)
+      return new HTTPTap(offset, length, false);
+    HTTPResource r = new HTTPSession(session.uri).select(path);
+    return r.new HTTPTap(offset, length, true);
+  }
+
   public synchronized Bell<Stat> stat() {
     return initialize().new AsBell<Stat>() {
       public Bell<Stat> convert(HTTPResource r) {
@@ -73,14 +85,30 @@ public class HTTPResource extends Resource<HTTPSession, HTTPResource> {
     protected Bell<Void> onStartBell, sinkReadyBell;
     private HTTPBuilder builder;
     private String resourcePath;
+    private final long offset, length;
+    private final boolean ownSession;
 
     /**
      * Constructs a {@code tap} associated with a {@code resource}
      * that receives data from HTTP connection.
      */
     public HTTPTap() {
+      this(0, -1, false);
+    }
+
+    /**
+     * Constructs a {@code tap} which requests a byte range of the resource.
+     *
+     * @param offset the first byte to request
+     * @param length the number of bytes to request, or -1 for the rest
+     * @param ownSession whether to close the session when finished
+     */
+    HTTPTap(long offset, long length, boolean ownSession) {
       super(HTTPResource.this);
       this.builder = HTTPResource.this.session.builder;
+      this.offset = offset;
+      this.length = length;
+      this.ownSession = ownSession;
       onStartBell = new Bell<Void> ();
       setPath(path.toString());
     }
@@ -88,6 +116,7 @@ public class HTTPResource extends Resource<HTTPSession, HTTPResource> {
     public Bell<?> start(final Bell bell) {
       return initialize().and(bell).new AsBell() {
         public Bell convert(Object o) {
+          builder = session.builder;
           if (builder.onCloseBell.isDone()) {
             return onStartBell.cancel();
           }
@@ -99,8 +128,7 @@ public class HTTPResource extends Resource<HTTPSession, HTTPResource> {
 
               if (builder.isKeepAlive()) {
                 ch.addChannelTask(HTTPTap.this);
-                ch.writeAndFlush(
-                    builder.prepareGet(resourcePath));
+                ch.writeAndFlush(builder.prepareGet(HTTPTap.this));
               } else {
                 builder.tryResetConnection(HTTPTap.this);
               }
@@ -127,7 +155,28 @@ public class HTTPResource extends Resource<HTTPSession, HTTPResource> {
       return super.drain(slice);
     }
 
-    public void finish(Throwable t) { super.finish(t); }
+    public void finish(Throwable t) {
+      super.finish(t);
+      if (ownSession)
+        session.close();
+    }
+
+    /** Tells whether this {@code HTTPTap} requests a byte range. */
+    protected boolean isRanged() {
+      return offset > 0 || length >= 0;
+    }
+
+    /**
+     * Gets the value of the {@code Range} header this {@code HTTPTap}
+     * should send, or {@code null} if it requests the whole resource.
+     */
+    protected String range() {
+      if (!isRanged())
+        return null;
+      if (length < 0)
+        return "bytes="+offset+"-";
+      return "bytes="+offset+"-"+(offset+length-1);
+    }
 
     /** 
      * Tells whether this {@code HTTPTap} instance has acquired
@@ -32,7 +32,11 @@ public class IRODSSink extends Sink<IRODSResource>{
   public Bell drain(final Slice slice) {
     return new ThreadBell(executor) {
       public Object run() throws Exception {
-        stream.streamBytesToFile(slice.asBytes(), slice.length());
+        try {
+          stream.streamBytesToFile(slice.asBytes(), slice.length());
+        } finally {
+          slice.release();
+        }
         return null;
       }
     }.startOn(destination().initialize());
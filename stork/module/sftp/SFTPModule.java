@@ -1,6 +1,10 @@
 package stork.module.sftp;
 
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+
+import io.netty.buffer.*;
 
 import com.jcraft.jsch.*;
 import com.jcraft.jsch.ChannelSftp.LsEntry;
@@ -174,6 +178,12 @@ class SFTPResource extends Resource<SFTPSession, SFTPResource> {
     };
   }
 
+  public Tap tap(long offset, long length) {
+    if (offset == 0 && length < 0)
+      return tap();
+    return new SFTPTap(this, offset, length);
+  }
+
   public Sink sink() {
     return new Sink(this) {
       private java.io.OutputStream os;
@@ -192,7 +202,11 @@ class SFTPResource extends Resource<SFTPSession, SFTPResource> {
       protected Bell drain(final Slice slice) {
         return new ThreadBell<Void>() {
           public Void run() throws Exception {
-            os.write(slice.asBytes());
+            try {
+              os.write(slice.asBytes());
+            } finally {
+              slice.release();
+            }
             return null;
           }
         }.start();
@@ -208,3 +222,103 @@ class SFTPResource extends Resource<SFTPSession, SFTPResource> {
     };
   }
 }
+
+/**
+ * A {@code Tap} which reads a range of a file. Each one opens its own SFTP
+ * channel over the session's SSH connection, so that several can read from
+ * the same file in parallel. Reads block, so each chunk is read on a shared
+ * pool of reader threads, and the next is only read once the pipeline has
+ * room for it.
+ */
+class SFTPTap extends Tap<SFTPResource> {
+  static final int CHUNK_SIZE = 64 << 10;
+
+  // Runs blocking channel operations, so no thread waits on the pipeline.
+  private static final Executor readers =
+    Executors.newCachedThreadPool(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "SFTP Reader");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+
+  private final long offset, length;
+  private ChannelSftp channel;
+  private InputStream in;
+  private long position, remaining;
+
+  SFTPTap(SFTPResource resource, long offset, long length) {
+    super(resource);
+    this.offset = offset;
+    this.length = length;
+    position = offset;
+    remaining = (length < 0) ? Long.MAX_VALUE : length;
+  }
+
+  // The returned bell rings once the channel is open, and reading begins.
+  protected Bell start(Bell bell) {
+    return new ThreadBell<Void>(readers) {
+      public Void run() throws Exception {
+        channel = (ChannelSftp) source().session.jsch.openChannel("sftp");
+        channel.connect();
+        in = channel.get(source().path.toString(), null, offset);
+        return null;
+      } public void done() {
+        readNext();
+      } public void fail(Throwable t) {
+        stop(t);
+      }
+    }.startOn(source().initialize().and(bell));
+  }
+
+  // Read the next chunk on a reader thread and pass it on, then read the one
+  // after once it has drained.
+  private void readNext() {
+    if (remaining <= 0) {
+      stop(null);
+      return;
+    }
+
+    final int len = (int) Math.min(remaining, CHUNK_SIZE);
+    new ThreadBell<ByteBuf>(readers) {
+      public ByteBuf run() throws Exception {
+        ByteBuf buf = Slice.allocate(len);
+        try {
+          if (buf.writeBytes(in, len) >= 0)
+            return buf;
+        } catch (Exception e) {
+          buf.release();
+          throw e;
+        }
+        buf.release();
+        return null;
+      } protected void done(ByteBuf buf) {
+        if (buf == null) {
+          stop(null);
+          return;
+        }
+        int n = buf.readableBytes();
+        Bell drained = drain(new Slice(buf, position));
+        position += n;
+        remaining -= n;
+        drained.new Promise() {
+          public void done()            { readNext(); }
+          public void fail(Throwable t) { stop(t); }
+        };
+      } public void fail(Throwable t) {
+        stop(t);
+      }
+    }.start();
+  }
+
+  // Close the channel, and finish the tap.
+  private void stop(Throwable t) {
+    if (channel != null)
+      channel.disconnect();
+    if (t == null)
+      finish();
+    else
+      finish(t);
+  }
+}
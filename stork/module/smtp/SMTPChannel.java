@@ -108,6 +108,8 @@ public class SMTPChannel {
     return last.new Promise() {
       public void done() {
         channelFuture.channel().writeAndFlush(bytebuf);
+      } public void fail(Throwable t) {
+        bytebuf.release();
       }
     };
   }
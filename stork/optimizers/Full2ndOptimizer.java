@@ -61,10 +61,10 @@ public class Full2ndOptimizer extends Optimizer {
       return new Block().toAd();
     }
 
-    long sample = (long) ((size >= 5E8) ? 5E7 : size/10.0);
+    long sample = (long) ((size >= 5E8 || size <= 0) ? 5E7 : size/10.0);
 
     // Don't transfer more than what's available.
-    if (off+sample >= size)
+    if (off+sample >= size && size > 0)
       sample = -1;
 
     // Determine if this is the last sample we want.
@@ -208,14 +208,14 @@ public class Full2ndOptimizer extends Optimizer {
       Block bj = samples.get(j);
       Block bk = samples.get(k);
 
-      System.out.printf("Samples: %d %d %d\n", bi.para, bj.para, bk.para);
-      System.out.printf("         %.2f %.2f %.2f\n", bi.tp, bj.tp, bk.tp);
+      Log.finer("Samples: ", bi.para, " ", bj.para, " ", bk.para,
+                " throughputs: ", bi.tp, " ", bj.tp, " ", bk.tp);
 
       double a_ = cal_a(bi, bj, bk),
              b_ = cal_b(bi, bj, bk, a_),
              c_ = cal_c(bi, bj, bk, a_, b_),
              err_ = cal_err(a_, b_, c_);
-      System.out.printf("Got: %.2f %.2f %.2f %.2f\n", a_, b_, c_, err_);
+      Log.finer("Got: ", a_, " ", b_, " ", c_, " error: ", err_);
 
       // If new err is better, replace old calculations.
       if (err_ > 0 && err_ < err) {
@@ -226,7 +226,8 @@ public class Full2ndOptimizer extends Optimizer {
     para = cal_full_peak(a, b, c, p_range);
     analysis_done = true;
 
-    System.out.printf("ANALYSIS DONE!! Got: x/sqrt((%f)*x^2+(%f)*x+(%f)) = %d\n", a, b, c, para);
+    Log.fine("Analysis done: x/sqrt((", a, ")*x^2+(", b, ")*x+(", c, ")) = ",
+             para);
     return err;
   }
 
@@ -14,7 +14,10 @@ import stork.util.*;
 // back to the optimizer. The optimizer will use this information to
 // generate the next sample, and so forth until the transfer is done.
 //
-// TODO: Optimizer chaining? Optimizer registration. Optimizer params.
+// Optimizers are looked up by name with byName(), and are driven
+// against a running transfer by a Tuner.
+//
+// TODO: Optimizer chaining? Optimizer params.
 
 public class Optimizer {
   // Return a Ad containing the parameters for a sample. The ad
@@ -39,4 +42,16 @@ public class Optimizer {
   public String name() {
     return "none";
   }
+
+  // Get a new optimizer given its name. Null or "none" gets the base
+  // optimizer, which does nothing.
+  public static Optimizer byName(String name) {
+    if (name == null || name.equals("none"))
+      return new Optimizer();
+    if (name.equals("full_2nd"))
+      return new Full2ndOptimizer();
+    if (name.equals("full_c"))
+      return new FullCOptimizer();
+    throw new IllegalArgumentException("Unknown optimizer: "+name);
+  }
 } 
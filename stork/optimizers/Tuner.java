@@ -0,0 +1,126 @@
+package stork.optimizers;
+
+import java.util.*;
+
+import stork.ad.*;
+import stork.feather.*;
+import stork.util.*;
+
+// Drives an optimizer against a running transfer. Every interval, the
+// transfer's progress is checked. Once the bytes requested by the current
+// sample have been transferred, the throughput over the sample is reported
+// to the optimizer, and the next sample is requested. The parallelism the
+// optimizer asks for is applied to the transfer's concurrency as it goes,
+// so the transfer never has to be restarted.
+//
+// When the optimizer stops asking for samples, its final parallelism is
+// applied and the tuner stops. Every change made to the transfer is
+// appended to the adjustment list given to the tuner.
+
+public class Tuner {
+  private final Optimizer optimizer;
+  private final ProxyTransfer transfer;
+  private final List<Adjustment> adjustments;
+  private double interval = 1;
+
+  // The current sample.
+  private Ad sample;
+  private long start, time;
+  private boolean finished = false;
+
+  // A record of a change the tuner made to a transfer.
+  public static class Adjustment {
+    public long time;
+    public String optimizer;
+    public int concurrency;
+    public double throughput;
+
+    public Adjustment() { }
+
+    Adjustment(String optimizer, int concurrency, double throughput) {
+      this.time = System.currentTimeMillis();
+      this.optimizer = optimizer;
+      this.concurrency = concurrency;
+      this.throughput = throughput;
+    }
+  }
+
+  public Tuner(Optimizer optimizer, ProxyTransfer transfer,
+               List<Adjustment> adjustments) {
+    this.optimizer = optimizer;
+    this.transfer = transfer;
+    this.adjustments = adjustments;
+  }
+
+  // Set how often, in seconds, to check on the transfer.
+  public synchronized Tuner interval(double interval) {
+    this.interval = interval;
+    return this;
+  }
+
+  // Initialize the optimizer with the expected size of the transfer (or -1
+  // if unknown) and the range of concurrency levels to choose from, then
+  // start sampling.
+  public Tuner start(long size, Range range) {
+    synchronized (this) {
+      optimizer.initialize(size, range);
+      next(0);
+    } schedule();
+    return this;
+  }
+
+  // Check on the transfer again after the interval.
+  private void schedule() {
+    Bell.timerBell(interval).new Promise() {
+      public void done() {
+        if (!transfer.isDone() && check())
+          schedule();
+      }
+    };
+  }
+
+  // See if the current sample is complete. Returns false once the tuner is
+  // finished.
+  private synchronized boolean check() {
+    if (finished)
+      return false;
+
+    long bytes = transfer.info.done - start;
+    if (bytes < sample.getLong("size"))
+      return true;
+
+    double seconds = (System.nanoTime()-time)/1E9;
+    double throughput = (seconds > 0) ? bytes/seconds : 0;
+
+    Ad report = new Ad(sample);
+    report.put("size", bytes);
+    report.put("throughput", throughput);
+    optimizer.report(report);
+
+    next(throughput);
+    return !finished;
+  }
+
+  // Get the next sample from the optimizer and apply its parallelism.
+  private synchronized void next(double throughput) {
+    sample = optimizer.sample();
+
+    if (sample != null && sample.has("parallelism"))
+      adjust(sample.getInt("parallelism"), throughput);
+    if (sample == null || sample.getLong("size", -1) < 0)
+      finished = true;
+
+    start = transfer.info.done;
+    time = System.nanoTime();
+  }
+
+  // Change the concurrency of the transfer, if it's not already that.
+  private void adjust(int concurrency, double throughput) {
+    if (concurrency < 1 || concurrency == transfer.concurrency())
+      return;
+    Log.info("Optimizer ", optimizer.name(),
+             " adjusting concurrency to ", concurrency);
+    transfer.concurrency(concurrency);
+    adjustments.add(new Adjustment(optimizer.name(), concurrency, throughput));
+  }
+}
@@ -9,6 +9,7 @@ import stork.core.server.*;
 import stork.core.handlers.*;
 import stork.feather.*;
 import stork.feather.util.*;
+import stork.optimizers.*;
 import stork.util.*;
 
 import static stork.scheduler.JobStatus.*;
@@ -22,12 +23,82 @@ import static stork.feather.util.Time.now;
 public class Job {
   private JobStatus status = scheduled;
   private JobEndpointRequest src, dest;
+  /** Further destinations to write to from the same reads. */
+  private List<JobEndpointRequest> replicas;
   private int attempts = 0, max_attempts = 10;
   private String message;
 
+  /**
+   * Large files are split into up to this many segments of at least {@code
+   * segment_size} bytes, which are transferred in parallel where the source
+   * and destination allow it.
+   */
+  private int segments = 1;
+  private long segment_size = 64 << 20;
+
+  /**
+   * The order files are started in: {@code discovery}, {@code largest},
+   * {@code smallest}, or {@code mixed}. See {@link TransferOrder}.
+   */
+  private String order;
+
+  /**
+   * Files no larger than {@code aggregate} bytes are sent in archives of up
+   * to {@code aggregate_batch} files, where the destination supports it. A
+   * negative threshold turns this off.
+   */
+  private long aggregate = -1;
+  private int aggregate_batch = 64;
+
+  /**
+   * How many files to transfer at once, and the most an optimizer may raise
+   * that to. If an optimizer is named (see {@link Optimizer#byName(String)}),
+   * it tunes the concurrency while the job runs.
+   */
+  private int concurrency = 1, max_concurrency = 8;
+  private String optimizer;
+  /** Changes the optimizer has made to the running transfer. */
+  private List<Tuner.Adjustment> adjustments;
+
+  /**
+   * The algorithm to checksum files with as they are read, if any, and
+   * whether to check the checksums with the destination. See {@link
+   * Digest#create(String)}.
+   */
+  private String checksum;
+  private boolean verify = false;
+  /** Checksums of the files transferred so far. */
+  private Map<String,String> checksums;
+
+  /**
+   * Bandwidth limit in bytes per second, or zero. This falls under the
+   * user's limit, and the limits of the endpoint hosts.
+   */
+  private long bandwidth = 0;
+
+  /**
+   * Bytes to buffer in memory and on disk between each read and write, so
+   * fast sources aren't held open by slow destinations. See {@link
+   * ProxyTransfer#stage(long, long, java.io.File)}.
+   */
+  private long stage_memory = 0, stage_disk = 0;
+  /** Bytes the staging buffers have spilled to disk. */
+  private long spilled = 0;
+
+  /**
+   * Whether to trace where the time goes in each file. See {@link
+   * ProxyTransfer#trace(Trace)}.
+   */
+  private boolean trace = false;
+
+  /** Offsets files were written up to, so failed attempts can resume. */
+  private Map<String,Long> offsets = new HashMap<String,Long>();
+  /** Files which have been completed, so failed attempts can skip them. */
+  private Checkpoint checkpoint = new Checkpoint();
+
   /** Byte progress of the transfer. */
   public TransferInfo bytes;
-  /** File progress of the transfer. Currently unused. */
+  /** File progress of the transfer. */
   public TransferInfo files;
 
   /** An ID meaningful to the user who owns the job. */
@@ -63,6 +134,15 @@ public class Job {
   }
 
   private transient Transfer transfer;
+  private transient Tuner tuner;
+  private transient TokenBucket bucket;
+  // The gauge this job is counted in. See count().
+  private transient Metrics.Gauge counted;
+  // The trace of the last attempt, if tracing.
+  private transient Trace tracer;
+
+  /** Get the trace of the job's last attempt, or {@code null}. */
+  public synchronized Trace trace() { return tracer; }
 
   protected Scheduler scheduler() { return scheduler; }
 
@@ -71,6 +151,22 @@ public class Job {
     public User user() { return Job.this.user(); }
   }
 
+  /** Get the bucket limiting the job's bandwidth. */
+  public synchronized TokenBucket bandwidth() {
+    if (bucket == null) {
+      TokenBucket parent = (user() != null) ?
+        user().bandwidth() : scheduler().server().bandwidth;
+      bucket = new TokenBucket(parent).rate(bandwidth);
+    } return bucket;
+  }
+
+  /** Change the job's bandwidth limit, including while it's running. */
+  public synchronized Job bandwidth(long rate) {
+    bandwidth = rate;
+    bandwidth().rate(rate);
+    return this;
+  }
+
   public int jobId() {
     return job_id;
   }
@@ -85,6 +181,18 @@ public class Job {
     return jo
   }*/
 
+  /**
+   * Count this job in the gauge for its status, moving it from the one it was
+   * counted in, if any. Called once the job is added to a scheduler, and on
+   * every transition after that.
+   */
+  synchronized void count() {
+    if (counted != null)
+      counted.add(-1);
+    counted = Metrics.global().gauge("jobs", "status", status.name());
+    counted.add(1);
+  }
+
   /** Get the status of the job. */
   public synchronized JobStatus status() { return status; }
 
@@ -99,12 +207,17 @@ public class Job {
     if (this.status == status)
       return this;
 
+    Recording.Event event = Recording.begin("job.status");
+    if (event != null)
+      event.set("job", job_id).set("from", this.status).set("to", status);
+
     // Handle leaving the current state.
     if (this.status != null) switch (this.status) {
       case processing:
         if (transfer != null)
           transfer.stop();
         transfer = null;
+        tuner = null;
     }
 
     // Handle entering the new state.
@@ -119,7 +232,15 @@ public class Job {
         if (transfer != null)
           transfer.cancel();
         times.completed = now(); break;
-    } return this;
+    }
+
+    Metrics.global().counter(
+      "job_transitions_total", "status", status.name()).increment();
+    if (counted != null)
+      count();
+    if (event != null)
+      event.commit();
+    return this;
   }
 
   /** Set the message associated with the job. */
@@ -156,6 +277,7 @@ public class Job {
   public synchronized Job reschedule() {
     if (!canBeScheduled())
       throw new RuntimeException("Job cannot be automatically rescheduled.");
+    Metrics.global().counter("job_retries_total").increment();
     status(scheduled);
     scheduler.schedule(this);
     return this;
@@ -208,6 +330,32 @@ public class Job {
     }
   }
 
+  // Check if the job uses anything only a ProxyTransfer provides, so it can't
+  // be handed to a shortcut such as a local copy.
+  private boolean needsProxy() {
+    if (replicas != null && !replicas.isEmpty())
+      return true;
+    if (segments > 1)
+      return true;
+    if (offsets != null && !offsets.isEmpty())
+      return true;
+    if (checkpoint != null && checkpoint.size() > 0)
+      return true;
+    if (order != null)
+      return true;
+    if (optimizer != null)
+      return true;
+    if (aggregate >= 0)
+      return true;
+    if (checksum != null || verify)
+      return true;
+    if (stage_memory > 0 || stage_disk > 0)
+      return true;
+    if (trace)
+      return true;
+    return false;
+  }
+
   // Handle the actual starting the transfer. This method can throw any
   // exception it wants.
   private synchronized Bell<Job> start0() throws Exception {
@@ -218,21 +366,74 @@ public class Job {
 
     // Keep this as a temporary in case we get unlucky and the job fails before
     // we return, because the done handler sets this.transfer to null.
-    Transfer transfer =
-      src.resolveAs("source").transferTo(dest.resolveAs("destination"));
+    Resource source = src.resolveAs("source");
+    Resource destination = dest.resolveAs("destination");
+    Transfer transfer = needsProxy() ?
+      new ProxyTransfer(source, destination) :
+      source.transferTo(destination);
 
     this.transfer = transfer;
 
+    List<TokenBucket> buckets = new ArrayList<TokenBucket>();
+    buckets.add(bandwidth());
+    for (Resource r : new Resource[] { source, destination }) {
+      TokenBucket host = scheduler().server().hostBandwidth(r.uri().host());
+      if (host != null && !buckets.contains(host))
+        buckets.add(host);
+    }
+
+    if (transfer instanceof LocalTransfer) {
+      LocalTransfer lt = (LocalTransfer) transfer;
+      lt.throttle(buckets);
+      files = lt.files;
+    }
+
+    if (transfer instanceof ProxyTransfer) {
+      // The transfer updates this as it goes, while the job may be saved.
+      offsets = (offsets == null) ?
+        new ConcurrentHashMap<String,Long>() :
+        new ConcurrentHashMap<String,Long>(offsets);
+      if (checkpoint == null)
+        checkpoint = new Checkpoint();
+      checksums = (checksums == null) ?
+        new ConcurrentHashMap<String,String>() :
+        new ConcurrentHashMap<String,String>(checksums);
+      adjustments = (adjustments == null) ?
+        new CopyOnWriteArrayList<Tuner.Adjustment>() :
+        new CopyOnWriteArrayList<Tuner.Adjustment>(adjustments);
+      ProxyTransfer pt = (ProxyTransfer) transfer;
+      pt.throttle(buckets);
+      if (replicas != null) for (JobEndpointRequest r : replicas)
+        pt.replicate(r.resolveAs("replica"));
+      pt.segment(segments, segment_size).resume(offsets).
+        checkpoint(checkpoint).order(TransferOrder.byName(order)).
+        aggregate(aggregate, aggregate_batch).
+        checksum(checksum, checksums, verify).
+        stage(stage_memory, stage_disk, stageDir()).concurrency(concurrency).
+        attempt(attempts);
+      if (trace)
+        pt.trace(tracer = new Trace("job "+job_id));
+      files = pt.files;
+      if (optimizer != null)
+        tuner = new Tuner(Optimizer.byName(optimizer), pt, adjustments);
+    }
+
     bytes = transfer.info;
 
     transfer.onStop().new Promise() {
       public void done() {
         // We did it! The transfer completed successfully.
         Log.info("Job complete: ", uuid());
+        noteSpilled();
+        finishTrace();
+        offsets.clear();
+        checkpoint.clear();
         status(complete);
       } public void fail(Throwable t) {
         // There was some problem during the transfer. Reschedule if possible.
         Log.warning("Job failed: ", uuid(), " ", t);
+        noteSpilled();
+        finishTrace();
         status(failed, t.getMessage());
         /*Delete: attempts++*/
         reschedule();
@@ -242,9 +443,34 @@ public class Job {
     // Wish me luck!
     transfer.start();
 
+    if (tuner != null) {
+      int max = Math.max(concurrency, max_concurrency);
+      tuner.start(-1, new Range(Math.max(concurrency, 1), max));
+    }
+
     return transfer.onStop().as(this);
   }
 
+  // Stop tracing once the transfer has stopped, and log the critical paths.
+  private synchronized void finishTrace() {
+    if (tracer == null)
+      return;
+    tracer.finish();
+    Log.info("Job trace:\n", tracer);
+  }
+
+  // Get the configured directory for spilled staging data, if any.
+  private java.io.File stageDir() {
+    String dir = scheduler().server().config.stage_dir;
+    return (dir == null) ? null : new java.io.File(dir);
+  }
+
+  // Add what the running transfer spilled to the job's total.
+  private synchronized void noteSpilled() {
+    if (transfer instanceof ProxyTransfer)
+      spilled += ((ProxyTransfer) transfer).spilled();
+  }
+
   public String toString() {
     return Ad.marshal(this).toString();
   }
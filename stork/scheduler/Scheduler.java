@@ -47,6 +47,7 @@ public abstract class Scheduler implements Set<Job> {
     jobs.put(job.uuid(), job);
 
     job.scheduler = this;
+    job.count();
 
     // If we're still waiting for start() to be called, add it to the pending
     // list.
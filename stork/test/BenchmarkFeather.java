@@ -4,12 +4,20 @@ import stork.feather.*;
 import stork.feather.util.*;
 import stork.module.ftp.*;
 import stork.module.sftp.*;
+import stork.util.*;
 
 /**
  * A simple test to benchmark Feather capabilities.
  */
 public class BenchmarkFeather {
   public static void main(String[] args) {
+    if (args.length > 0 && args[0].equals("bells")) {
+      benchmarkBells();
+      return;
+    } if (args.length > 0 && args[0].equals("log")) {
+      benchmarkLog();
+      return;
+    }
     benchmarkTransfers();
     //benchmarkStreams();
     //benchmarkThroughput();
@@ -50,6 +58,136 @@ public class BenchmarkFeather {
     return src.transferTo(dest).start();
   }
 
+  /**
+   * Measure the throughput of common {@code Bell} operations. Each case is
+   * run a few times so the JIT has a chance to warm up, and only the last run
+   * is reported.
+   */
+  public static void benchmarkBells() {
+    final int n = 200000;
+    for (int i = 0; i < 5; i++) {
+      boolean print = (i == 4);
+      report(print, "ring", n, benchmarkRing(n));
+      report(print, "promise", n, benchmarkPromise(n));
+      report(print, "As chain", n, benchmarkAsChain(n));
+      report(print, "AsBell chain", n, benchmarkAsBellChain(n));
+      report(print, "contended promise", n, benchmarkContended(n, 8));
+    }
+  }
+
+  private static void report(boolean print, String name, int n, long ns) {
+    if (print) System.out.printf(
+      "%-20s %12.0f ops/s%n", name, n/(ns/1E9));
+  }
+
+  // Ring n bells that have a single promise each.
+  private static long benchmarkRing(int n) {
+    Bell<Object> last = null;
+    long t = System.nanoTime();
+    for (int i = 0; i < n; i++) {
+      Bell<Object> b = new Bell<Object>();
+      last = b.promise(new Bell<Object>());
+      b.ring(i);
+    } last.sync();
+    return System.nanoTime()-t;
+  }
+
+  // Promise n bells to a single bell, then ring it.
+  private static long benchmarkPromise(int n) {
+    Bell<Object> root = new Bell<Object>(), last = null;
+    long t = System.nanoTime();
+    for (int i = 0; i < n; i++)
+      last = root.promise(new Bell<Object>());
+    root.ring();
+    last.sync();
+    return System.nanoTime()-t;
+  }
+
+  // Ring through a chain of n As conversions, in batches of 100.
+  private static long benchmarkAsChain(int n) {
+    long t = System.nanoTime();
+    for (int i = 0; i < n; i += 100) {
+      Bell<Integer> root = new Bell<Integer>(), b = root;
+      for (int j = 0; j < 100; j++) b = b.new As<Integer>() {
+        public Integer convert(Integer i) { return i+1; }
+      };
+      root.ring(0);
+      b.sync();
+    } return System.nanoTime()-t;
+  }
+
+  // Ring through a chain of n AsBell conversions, in batches of 100.
+  private static long benchmarkAsBellChain(int n) {
+    long t = System.nanoTime();
+    for (int i = 0; i < n; i += 100) {
+      Bell<Integer> root = new Bell<Integer>(), b = root;
+      for (int j = 0; j < 100; j++) b = b.new AsBell<Integer>() {
+        public Bell<Integer> convert(Integer i) {
+          return new Bell<Integer>(i+1);
+        }
+      };
+      root.ring(0);
+      b.sync();
+    } return System.nanoTime()-t;
+  }
+
+  // Promise and ring from several threads at once on a shared bell.
+  private static long benchmarkContended(final int n, final int threads) {
+    final Bell<Object> shared = new Bell<Object>();
+    Thread[] ts = new Thread[threads];
+    long t = System.nanoTime();
+    for (int i = 0; i < threads; i++) (ts[i] = new Thread() {
+      public void run() {
+        for (int j = 0; j < n/threads; j++) {
+          Bell<Object> b = shared.promise(new Bell<Object>());
+          b.isDone();
+        }
+      }
+    }).start();
+    for (Thread th : ts) try {
+      th.join();
+    } catch (InterruptedException e) { }
+    shared.ring();
+    shared.promise(new Bell<Object>()).sync();
+    return System.nanoTime()-t;
+  }
+
+  /**
+   * Measure the cost of log calls which are filtered out, which is what most
+   * debug logging on the data path costs in production.
+   */
+  public static void benchmarkLog() {
+    final int n = 10000000;
+    Object arg = new Object();
+    for (int i = 0; i < 5; i++) {
+      boolean print = (i == 4);
+      long t = System.nanoTime();
+      for (int j = 0; j < n; j++)
+        Log.fine("Reply: ", arg);
+      reportCall(print, "disabled, 2 args", n, System.nanoTime()-t);
+
+      t = System.nanoTime();
+      for (int j = 0; j < n; j++)
+        Log.fine("Reply: ", arg, " ", j, " bytes");
+      reportCall(print, "disabled, varargs", n, System.nanoTime()-t);
+    }
+
+    // With an override for another package, calls at that level have to
+    // find their caller to be filtered out.
+    Log.level("stork.module", java.util.logging.Level.FINE);
+    for (int i = 0; i < 5; i++) {
+      long t = System.nanoTime();
+      for (int j = 0; j < n/100; j++)
+        Log.fine("Reply: ", arg);
+      reportCall(i == 4, "overridden elsewhere", n/100, System.nanoTime()-t);
+    }
+  }
+
+  private static void reportCall(boolean print, String name, int n, long ns) {
+    if (print) System.out.printf(
+      "%-20s %12.2f ns/call%n", name, (double) ns/n);
+  }
+
   public static void benchmarkStreams() {
   }
 
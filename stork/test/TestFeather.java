@@ -1,12 +1,22 @@
 package stork.test;
 
 import java.io.*;
+import java.util.*;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
 
+import org.junit.After;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
+import stork.ad.*;
 import stork.feather.*;
 import stork.feather.util.*;
+import stork.module.ftp.*;
+import stork.optimizers.*;
+import stork.util.*;
 
 /** Tests for Feather. */
 public class TestFeather {
@@ -43,6 +53,42 @@ public class TestFeather {
       fail("As-bell rang with bad value: "+s);
   }
 
+  @Test(timeout = 3000)
+  public void testBellPromiseOrder() {
+    final List<Integer> order =
+      Collections.synchronizedList(new ArrayList<Integer>());
+    Bell<String> a = new Bell<String>();
+    Bell<String> last = null;
+    for (int i = 0; i < 100; i++) {
+      final int n = i;
+      last = a.promise(new Bell<String>() {
+        public void done() { order.add(n); }
+      });
+      if (i == 50) a.ring("test");
+    }
+    last.sync();
+    Bell.timerBell(.1).sync();
+    assertEquals("Not all promises rang.", 100, order.size());
+    for (int i = 0; i < 100; i++)
+      assertEquals("Promises rang out of order.", i, (int) order.get(i));
+  }
+
+  @Test(timeout = 3000)
+  public void testBellInlineContinuation() {
+    final Thread caller = Thread.currentThread();
+    final Bell<Boolean> inline = new Bell<Boolean>();
+    Bell.inlineDepth(4);
+    try {
+      Bell.rungBell().promise(new Bell<Object>() {
+        public void done() { inline.ring(Thread.currentThread() == caller); }
+      });
+      assertTrue("Promise did not run inline.", inline.isDone());
+      assertTrue("Promise ran on another thread.", inline.sync());
+    } finally {
+      Bell.inlineDepth(0);
+    }
+  }
+
   @Test public void testEmitter() {
     Emitter<String> emitter = new Emitter<String>();
     Bell<String> a, b, c;
@@ -84,6 +130,697 @@ public class TestFeather {
     assertEquals("Third queued emit failed.", c.sync(), "three");
   }
 
+  // A tap which can be drained from outside.
+  private static class TestTap extends Tap {
+    TestTap() { super(Resources.anonymous()); }
+    protected Bell start(Bell bell) { return null; }
+    public Bell drain(Slice slice) { return super.drain(slice); }
+    public void end(Throwable t) { finish(t); }
+  }
+
+  // Ring every write bell in a list until condition is done.
+  private static void ringWrites(List<Bell> writes, Bell until)
+  throws Exception {
+    while (!until.isDone()) synchronized (writes) {
+      for (Bell w : writes) w.ring();
+      writes.wait(10);
+    }
+  }
+
+  @Test(timeout = 3000)
+  public void testPipeWindow() throws Exception {
+    final List<Bell> writes = new ArrayList<Bell>();
+    final List<Integer> order =
+      Collections.synchronizedList(new ArrayList<Integer>());
+    TestTap tap = new TestTap();
+    tap.window(0, 2).attach(new Sink(Resources.anonymous()) {
+      protected Bell drain(Slice slice) {
+        order.add(slice.asBytes()[0]+0);
+        Bell bell = new Bell();
+        synchronized (writes) { writes.add(bell); }
+        return bell;
+      } protected void finish(Throwable t) { }
+    });
+    tap.start().sync();
+
+    Bell b1 = tap.drain(new Slice(new byte[] {1}));
+    assertTrue("Drain held back with room in the window.", b1.isDone());
+    Bell b2 = tap.drain(new Slice(new byte[] {2}));
+    assertFalse("Drain was not held back by a full window.", b2.isDone());
+
+    ringWrites(writes, b2);
+    b2.sync();
+    ringWrites(writes, tap.drain(new Slice(new byte[] {3})));
+    while (order.size() < 3)
+      ringWrites(writes, Bell.timerBell(.01));
+
+    assertEquals("Slices drained out of order.", Arrays.asList(1, 2, 3), order);
+  }
+
+  @Test(timeout = 3000)
+  public void testPipeFinishWaitsForSink() throws Exception {
+    final List<Integer> written =
+      Collections.synchronizedList(new ArrayList<Integer>());
+    TestTap tap = new TestTap();
+    tap.window(0, 16).attach(new Sink(Resources.anonymous()) {
+      // Each write takes a while, and the third fails.
+      protected Bell drain(Slice slice) {
+        final int n = slice.asBytes()[0];
+        final Bell bell = new Bell();
+        slice.release();
+        Bell.timerBell(.05).new Promise() {
+          public void done() {
+            if (n == 3) {
+              bell.ring(new IOException("disk full"));
+            } else {
+              written.add(n);
+              bell.ring();
+            }
+          }
+        };
+        return bell;
+      } protected void finish(Throwable t) { }
+    });
+    tap.start().sync();
+
+    for (byte i = 1; i <= 4; i++)
+      assertTrue(tap.drain(new Slice(new byte[] {i})).isDone());
+    tap.end(null);
+    Bell finished = tap.onFinish();
+    assertFalse("Finished before the sink wrote anything.", finished.isDone());
+
+    try {
+      finished.sync();
+      fail("A failed write was not reported.");
+    } catch (Exception e) {
+      assertTrue(String.valueOf(e), String.valueOf(e).contains("disk full"));
+    }
+    assertEquals(Arrays.asList(1, 2), written);
+  }
+
+  // Temporary directories made by tests, deleted after each test.
+  private final List<File> temporary = new ArrayList<File>();
+
+  // Make an empty temporary directory, deleted once the test is over.
+  private File tempDir() throws IOException {
+    File dir = File.createTempFile("feather", "");
+    dir.delete();
+    dir.mkdirs();
+    temporary.add(dir);
+    return dir;
+  }
+
+  @After public void deleteTemporary() {
+    for (File dir : temporary)
+      delete(dir);
+    temporary.clear();
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) for (File child : children)
+      delete(child);
+    file.delete();
+  }
+
+  // Write size random bytes from seed to file, making its parents.
+  private static byte[] writeRandom(File file, int size, long seed)
+  throws IOException {
+    byte[] data = new byte[size];
+    new Random(seed).nextBytes(data);
+    write(file, data);
+    return data;
+  }
+
+  private static void write(File file, byte[] data) throws IOException {
+    file.getAbsoluteFile().getParentFile().mkdirs();
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(data);
+    } finally {
+      out.close();
+    }
+  }
+
+  private static byte[] readAll(File file) throws IOException {
+    byte[] data = new byte[(int) file.length()];
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    try {
+      in.readFully(data);
+    } finally {
+      in.close();
+    }
+    return data;
+  }
+
+  // A proxied transfer between two paths under dir.
+  private static ProxyTransfer proxy(File dir, String src, String dest) {
+    LocalSession session = new LocalSession(dir.getPath());
+    return new ProxyTransfer(
+      session.select(Path.create(src)), session.select(Path.create(dest)));
+  }
+
+  @Test(timeout = 3000)
+  public void testLocalTransfer() throws Exception {
+    File dir = tempDir();
+    byte[] data = writeRandom(new File(dir, "src/sub/f"), 100000, 1);
+
+    LocalSession session = new LocalSession(dir.getPath());
+    Transfer t = session.select(Path.create("src")).transferTo(
+      session.select(Path.create("dest")));
+    t.start().onStop().sync();
+
+    byte[] got = readAll(new File(dir, "dest/sub/f"));
+    assertArrayEquals("Copied file differs.", data, got);
+    assertEquals("Progress was not reported.", data.length, t.info.done);
+    assertEquals("Total was not reported.", data.length, t.info.total);
+    assertEquals("Files were not counted.", 1, ((LocalTransfer) t).files.done);
+  }
+
+  @Test(timeout = 3000)
+  public void testSegmentedTransfer() throws Exception {
+    File dir = tempDir();
+    byte[] data = writeRandom(new File(dir, "src"), 100000, 3);
+
+    ProxyTransfer t = proxy(dir, "src", "dest");
+    t.segment(4, 10000).start().onStop().sync();
+
+    byte[] got = readAll(new File(dir, "dest"));
+    assertTrue("Destination should take positional writes.", t.random());
+    assertArrayEquals("Segmented copy differs.", data, got);
+  }
+
+  @Test(timeout = 3000)
+  public void testResumedTransfer() throws Exception {
+    File dir = tempDir();
+    byte[] data = writeRandom(new File(dir, "src"), 100000, 4);
+
+    // Pretend a previous attempt wrote the first 40000 bytes.
+    write(new File(dir, "dest"), new byte[40000]);
+    Map<String,Long> offsets = new HashMap<String,Long>();
+    offsets.put(Path.ROOT.toString(), 40000L);
+
+    ProxyTransfer t = proxy(dir, "src", "dest");
+    t.resume(offsets).start().onStop().sync();
+
+    byte[] got = readAll(new File(dir, "dest"));
+    byte[] expect = data.clone();
+    Arrays.fill(expect, 0, 40000, (byte) 0);
+    assertArrayEquals("Transfer did not resume at the offset.", expect, got);
+    assertTrue("Offset was not cleared.", offsets.isEmpty());
+  }
+
+  @Test(timeout = 3000)
+  public void testCheckpointedTransfer() throws Exception {
+    File dir = tempDir();
+    for (String name : new String[] { "a", "b" })
+      write(new File(dir, "src/"+name), name.getBytes());
+
+    Checkpoint checkpoint = new Checkpoint();
+    checkpoint.add(Path.create("/a"));
+
+    ProxyTransfer t = proxy(dir, "src", "dest");
+    t.checkpoint(checkpoint).start().onStop().sync();
+
+    assertFalse("Completed file was transferred.",
+      new File(dir, "dest/a").exists());
+    assertTrue("File was not transferred.", new File(dir, "dest/b").exists());
+    assertEquals("Files were not counted.", 1, t.files.done);
+    assertTrue("Directory was not recorded.", checkpoint.contains(Path.ROOT));
+    assertEquals("Checkpoint was not compacted.", 1, checkpoint.size());
+  }
+
+  @Test(timeout = 3000)
+  public void testReplicatedTransfer() throws Exception {
+    File dir = tempDir();
+    new File(dir, "broken").mkdirs();
+    byte[] data = writeRandom(new File(dir, "src"), 100000, 5);
+
+    // The last replica is a directory, so writing a file there fails.
+    LocalSession session = new LocalSession(dir.getPath());
+    ProxyTransfer t = new ProxyTransfer(
+      session.select(Path.create("src")), session.select(Path.create("a")));
+    t.replicate(session.select(Path.create("b")));
+    t.replicate(session.select(Path.create("broken")));
+    try {
+      t.start().onStop().sync();
+      fail("Failed replica was not reported.");
+    } catch (Exception e) { }
+
+    for (String name : new String[] { "a", "b" })
+      assertArrayEquals("Replica "+name+" differs.",
+        data, readAll(new File(dir, name)));
+    assertEquals("Source was not read once.", data.length, t.info.done);
+  }
+
+  @Test(timeout = 10000)
+  public void testAggregatedTransfer() throws Exception {
+    File dir = tempDir();
+    String[] names = { "a", "b", "empty", "sub/c", "sub/d", "big" };
+    int[] sizes = { 1, 700, 0, 512, 1500, 5000 };
+    byte[][] data = new byte[names.length][];
+    for (int i = 0; i < names.length; i++)
+      data[i] = writeRandom(new File(dir, "src/"+names[i]), sizes[i], 6+i);
+
+    // Everything but the big file fits in a batch.
+    ProxyTransfer t = proxy(dir, "src", "dest");
+    t.aggregate(2000, 2).concurrency(2);
+    t.start().onStop().sync();
+
+    for (int i = 0; i < names.length; i++)
+      assertArrayEquals(names[i]+" differs.",
+        data[i], readAll(new File(dir, "dest/"+names[i])));
+    assertEquals("Not every file was counted.", names.length, t.files.done);
+  }
+
+  @Test(timeout = 5000)
+  public void testAggregatedEntryFails() throws Exception {
+    File dir = tempDir();
+    for (String name : new String[] { "a", "b" })
+      write(new File(dir, "src/"+name), new byte[100]);
+    // The second file can't be written over a directory.
+    new File(dir, "dest/b").mkdirs();
+
+    Pipe.defaultWindow(0, 16);
+    ProxyTransfer t = proxy(dir, "src", "dest");
+    try {
+      t.aggregate(2000, 2).start().onStop().sync();
+      fail("A failed file in a batch was not reported.");
+    } catch (RuntimeException e) {
+      // Expected.
+    } finally {
+      Pipe.defaultWindow(0, 1);
+    }
+    assertEquals("A failed batch was counted.", 0, t.files.done);
+  }
+
+  @Test public void testDigest() throws Exception {
+    String[][] vectors = {
+      { "md5", "abc", "900150983cd24fb0d6963f7d28e17f72" },
+      { "SHA-1", "abc", "a9993e364706816aba3e25717850c26c9cd0d89d" },
+      { "sha256", "abc",
+        "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad" },
+      { "crc32", "123456789", "cbf43926" },
+      { "crc32c", "123456789", "e3069283" },
+      { "adler32", "abc", "024d0127" }
+    };
+    for (String[] v : vectors) {
+      // Feed it in two pieces, one of them direct.
+      byte[] b = v[1].getBytes("UTF-8");
+      Digest d = Digest.create(v[0]);
+      d.update(io.netty.buffer.Unpooled.wrappedBuffer(b, 0, 1));
+      d.update(io.netty.buffer.Unpooled.directBuffer().
+        writeBytes(b, 1, b.length-1));
+      assertEquals(v[0], v[2], d.hex());
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testChecksummedTransfer() throws Exception {
+    File dir = tempDir();
+    byte[] data = writeRandom(new File(dir, "src"), 8 << 20, 7);
+
+    // The file is many windows of slices long, so the sink is still writing
+    // when the tap finishes.
+    Map<String,String> sums = new HashMap<String,String>();
+    Pipe.defaultWindow(0, 16);
+    try {
+      ProxyTransfer t = proxy(dir, "src", "dest");
+      t.checksum("sha1", sums, true);
+      t.start().onStop().sync();
+    } finally {
+      Pipe.defaultWindow(0, 1);
+    }
+
+    Digest d = Digest.create("sha1");
+    d.update(data, 0, data.length);
+    assertEquals(d.hex(), sums.get("/"));
+  }
+
+  @Test(timeout = 10000)
+  public void testThrottledTransfer() throws Exception {
+    File dir = tempDir();
+    byte[] data = writeRandom(new File(dir, "src"), 200000, 8);
+
+    // The limit comes from the parent of the bucket given.
+    TokenBucket parent = new TokenBucket().rate(400000, 0);
+    ProxyTransfer t = proxy(dir, "src", "dest");
+    t.throttle(Arrays.asList(new TokenBucket(parent)));
+    long start = System.nanoTime();
+    t.start().onStop().sync();
+    double seconds = (System.nanoTime()-start)/1E9;
+
+    assertArrayEquals(data, readAll(new File(dir, "dest")));
+    assertTrue("Transfer was not throttled: "+seconds, seconds > 0.4);
+  }
+
+  @Test(timeout = 10000)
+  public void testThrottledLocalTransfer() throws Exception {
+    File dir = tempDir();
+    byte[] data = writeRandom(new File(dir, "src"), 200000, 8);
+
+    TokenBucket parent = new TokenBucket().rate(400000, 0);
+    LocalSession session = new LocalSession(dir.getPath());
+    LocalTransfer t = (LocalTransfer) session.select(Path.create("src")).
+      transferTo(session.select(Path.create("dest")));
+    t.throttle(Arrays.asList(new TokenBucket(parent)));
+    long start = System.nanoTime();
+    t.start().onStop().sync();
+    double seconds = (System.nanoTime()-start)/1E9;
+
+    assertArrayEquals(data, readAll(new File(dir, "dest")));
+    assertTrue("Transfer was not throttled: "+seconds, seconds > 0.4);
+  }
+
+  // Send data from a fast tap through spill to a slow sink, checking the
+  // tap finishes first, and return what the sink got.
+  private static byte[] spillThrough(SpillPipe spill, final byte[] data)
+  throws Exception {
+    final ByteArrayOutputStream got = new ByteArrayOutputStream();
+    final Bell<Object> sunk = new Bell<Object>();
+
+    // A sink which only accepts a slice every few milliseconds.
+    Sink sink = new Sink(Resources.anonymous()) {
+      protected Bell drain(Slice slice) {
+        got.write(slice.asBytes(), 0, slice.length());
+        slice.release();
+        return Bell.timerBell(.002);
+      } protected void finish(Throwable t) {
+        if (t == null)
+          sunk.ring();
+        else
+          sunk.ring(t);
+      }
+    };
+
+    Tap tap = new Tap(Resources.anonymous()) {
+      protected Bell start(Bell bell) {
+        return bell.new Promise() {
+          public void done() {
+            for (int i = 0; i < data.length; i += 1000)
+              drain(new Slice(Arrays.copyOfRange(data, i, i+1000)));
+            finish();
+          }
+        };
+      }
+    };
+    tap.attach(spill).attach(sink);
+    tap.start().sync();
+
+    // The tap finished without waiting for the sink.
+    assertFalse("Sink finished too early.", sunk.isDone());
+    sunk.sync();
+    return got.toByteArray();
+  }
+
+  @Test(timeout = 10000)
+  public void testSpillPipe() throws Exception {
+    byte[] data = new byte[100000];
+    new Random(9).nextBytes(data);
+
+    SpillPipe spill = new SpillPipe(10000, 1 << 20, null);
+    assertArrayEquals(data, spillThrough(spill, data));
+    assertTrue("Nothing was spilled.", spill.spilled() > 0);
+    assertTrue("Memory limit exceeded.", spill.peakMemory() <= 10000);
+    assertEquals(0, spill.buffered());
+  }
+
+  @Test(timeout = 10000)
+  public void testSpillPipeBudget() throws Exception {
+    byte[] data = new byte[100000];
+    new Random(10).nextBytes(data);
+
+    // The pipe's own memory limit is never reached, but the budget is.
+    SpillPipe spill = new SpillPipe(1 << 20, 1 << 20, null);
+    spill.account(new MemoryBudget().limit(5000).account());
+    assertArrayEquals(data, spillThrough(spill, data));
+    assertTrue("Nothing was spilled.", spill.spilled() > 0);
+    assertTrue("Budget exceeded: "+spill.peakMemory(),
+      spill.peakMemory() <= 6000);
+    assertEquals(0, spill.buffered());
+  }
+
+  @Test(timeout = 3000)
+  public void testMemoryBudget() throws Exception {
+    MemoryBudget budget = new MemoryBudget().limit(1000);
+    MemoryBudget.Account hog = budget.account(), other = budget.account();
+
+    // Past half the budget, only accounts under an even share may take more.
+    hog.take(600);
+    other.take(100);
+    assertFalse(hog.allowed());
+    assertTrue(other.allowed());
+
+    // Nobody may take more once the budget is used up.
+    other.take(300);
+    assertFalse(other.allowed());
+    Bell room = other.room();
+    assertFalse(room.isDone());
+
+    hog.give(600);
+    room.sync();
+    assertEquals(400, budget.used());
+    assertEquals(1000, budget.peak());
+  }
+
+  @Test(timeout = 3000)
+  public void testThroughputReadRarely() throws Exception {
+    // Reads are several quanta apart, which shouldn't inflate the estimate.
+    Throughput tp = new Throughput(100);
+    long start = System.nanoTime(), count = 0;
+    List<Double> reads = new ArrayList<Double>();
+    for (int read = 1; read <= 2; read++) {
+      while (System.nanoTime()-start < read*300E6) {
+        tp.update(1000);
+        count++;
+        Thread.sleep(2);
+      } reads.add(tp.value());
+    }
+    double rate = count*1000/((System.nanoTime()-start)/1E9);
+    for (double v : reads)
+      assertEquals("Estimate was "+v+", not "+rate, rate, v, rate/2);
+  }
+
+  @Test(timeout = 3000)
+  public void testHistogram() throws Exception {
+    final Histogram h = new Histogram();
+    final StripedLong count = new StripedLong();
+
+    // Record 1 to 10000 from several threads at once.
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      final int n = i;
+      threads[i] = new Thread() {
+        public void run() {
+          for (int v = n+1; v <= 10000; v += 4) {
+            h.record(v);
+            count.add(1);
+          }
+        }
+      };
+      threads[i].start();
+    } for (Thread t : threads) {
+      t.join();
+    }
+
+    assertEquals(10000, count.sum());
+    assertEquals(10000, h.count());
+    assertEquals(10000, h.max());
+    assertEquals(5000.5, h.mean(), 0.001);
+    assertEquals(5000, h.percentile(50), 5000/16);
+    assertEquals(9900, h.percentile(99), 9900/16);
+    assertEquals(10000, h.percentile(100));
+
+    Metrics metrics = new Metrics();
+    metrics.counter("c", "a", "b").increment();
+    metrics.counter("c", "a", "b").add(2);
+    assertEquals(3, metrics.counter("c", "a", "b").value());
+    assertEquals(1, metrics.metrics().size());
+  }
+
+  @Test public void testMetricsFormat() {
+    Metrics metrics = new Metrics();
+    metrics.counter("bytes_total", "host", "a\"b").add(5);
+    metrics.gauge("jobs", "status", "failed").add(2);
+    metrics.distribution("latency").record(100);
+
+    String text = metrics.write(new StringBuilder(), "stork_").toString();
+    assertTrue(text.contains("# TYPE stork_bytes_total counter\n"));
+    assertTrue(text.contains("stork_bytes_total{host=\"a\\\"b\"} 5\n"));
+    assertTrue(text.contains("stork_jobs{status=\"failed\"} 2\n"));
+    assertTrue(text.contains("# TYPE stork_latency summary\n"));
+    assertTrue(text.contains("stork_latency{quantile=\"0.99\"} 100\n"));
+    assertTrue(text.contains("stork_latency_count 1\n"));
+  }
+
+  @Test(timeout = 3000)
+  public void testTransferMetricLabels() throws Exception {
+    File dir = tempDir();
+    write(new File(dir, "src"), new byte[1000]);
+    proxy(dir, "src", "dest").start().onStop().sync();
+
+    // Hosts are only labeled when asked for, so hosts don't pile up.
+    for (Metrics.Metric m : Metrics.global().metrics())
+      assertFalse(m.name(), Arrays.asList(m.labels()).contains("host"));
+  }
+
+  @Test(timeout = 3000)
+  public void testTracedTransfer() throws Exception {
+    File dir = tempDir();
+    for (String name : new String[] { "a", "b" })
+      write(new File(dir, "src/"+name), new byte[1000]);
+
+    ProxyTransfer t = proxy(dir, "src", "dest");
+    Trace trace = new Trace("test");
+    assertTrue(Trace.enabled());
+    t.trace(trace).start().onStop().sync();
+    trace.finish();
+    assertFalse(Trace.enabled());
+
+    // Each file has a span, with a critical path leading back to its start.
+    String dump = trace.toString();
+    assertTrue(dump, dump.contains("3 spans"));
+    assertTrue(dump, dump.contains("span /a\n"));
+    assertTrue(dump, dump.contains("span /b\n"));
+  }
+
+  @Test public void testRecording() throws Exception {
+    File dir = tempDir();
+    for (String name : new String[] { "a", "b" })
+      write(new File(dir, "src/"+name), new byte[1000]);
+
+    assertNull(Recording.begin("test"));
+    Recording recording = new Recording(100);
+    recording.threshold("bell.dispatch", Long.MAX_VALUE).start();
+    try {
+      ProxyTransfer t = proxy(dir, "src", "dest");
+      t.attempt(2).start().onStop().sync();
+    } finally {
+      recording.stop();
+    }
+    assertFalse(Recording.enabled());
+
+    // Each file has an event with its size, and dispatches were too quick.
+    List<String> files = new ArrayList<String>();
+    for (Recording.Event e : recording.events()) {
+      assertFalse(e.type.equals("bell.dispatch"));
+      assertTrue(e.duration() >= 0);
+      if (!e.type.equals("transfer.file"))
+        continue;
+      files.add(e.get("path").toString());
+      assertEquals(1000L, e.get("bytes"));
+      assertEquals(2, e.get("attempt"));
+      assertEquals(true, e.get("ok"));
+    } Collections.sort(files);
+    assertEquals(Arrays.asList("/a", "/b"), files);
+  }
+
+  @Test public void testLogLevels() {
+    final List<String> got = new ArrayList<String>();
+    Handler handler = new Handler() {
+      public void publish(LogRecord r) {
+        synchronized (got) { got.add(r.getMessage()); }
+      } public void flush() { }
+      public void close() { }
+    };
+    Logger root = Logger.getLogger("");
+    root.addHandler(handler);
+
+    try {
+      assertFalse(Log.enabled(Level.FINE));
+      Log.level("stork.test", Level.FINE);
+      Log.fine("shown ", 1);
+      Log.finest("hidden");
+      Log.level("stork.test", null);
+      Log.fine("hidden");
+
+      Log.async(16);
+      Log.warning("async");
+      Log.flush();
+    } finally {
+      Log.async(0);
+      Log.level("stork.test", null);
+      root.removeHandler(handler);
+    }
+
+    assertEquals(Arrays.asList("shown 1", "async"), got);
+  }
+
+  @Test public void testTransferOrder() {
+    assertEquals("[d, b, c, a]", order(TransferOrder.largestFirst()));
+    assertEquals("[d, a, c, b]", order(TransferOrder.smallestFirst()));
+    assertEquals("[d, b, a, c]", order(TransferOrder.mixed()));
+  }
+
+  // Drain a queue holding files a, b, and c and a directory d, one at a time.
+  private static String order(TransferOrder queue) {
+    long[] sizes = { 1, 100, 10 };
+    for (int i = 0; i < sizes.length; i++) {
+      Stat stat = new Stat(""+(char)('a'+i));
+      stat.file = true;
+      stat.size = sizes[i];
+      queue.add(new TransferOrder.Entry(Path.create(stat.name), stat), false);
+    }
+    queue.add(new TransferOrder.Entry(Path.create("d"), null), false);
+
+    List<String> names = new ArrayList<String>();
+    for (TransferOrder.Entry e; (e = queue.poll()) != null;)
+      names.add(e.path.name());
+    return names.toString();
+  }
+
+  @Test(timeout = 3000)
+  public void testTuner() {
+    ProxyTransfer t = new ProxyTransfer(
+      Resources.anonymous(), Resources.anonymous());
+    List<Tuner.Adjustment> log = new ArrayList<Tuner.Adjustment>();
+    Optimizer fixed = new Optimizer() {
+      public Ad sample() {
+        return new Ad("parallelism", 3);
+      }
+    };
+    new Tuner(fixed, t, log).start(-1, new Range(1, 4));
+
+    assertEquals("Concurrency was not applied.", 3, t.concurrency());
+    assertEquals("Adjustment was not recorded.", 1, log.size());
+    assertEquals(3, log.get(0).concurrency);
+  }
+
+  @Test(timeout = 3000)
+  public void testMappedLocalTap() throws Exception {
+    File file = new File(tempDir(), "f");
+    byte[] data = writeRandom(file, 3000000, 2);
+
+    LocalResource.mmapThreshold(0);
+    try {
+      LocalSession session = new LocalSession(file.getParent());
+      Tap tap = session.select(Path.create(file.getName())).tap();
+      DataInputStream in = new DataInputStream(Pipes.asInputStream(tap));
+      tap.start();
+      byte[] got = new byte[data.length];
+      in.readFully(got);
+      assertArrayEquals("Mapped file read incorrectly.", data, got);
+    } finally {
+      LocalResource.mmapThreshold(64 << 20);
+    }
+  }
+
+  @Test public void testListedLinksArePartial() {
+    // A link's listed size is the length of its target's path.
+    FTPListParser parser = new FTPListParser();
+    Stat link = parser.parseEntry(
+      "lrwxrwxrwx 1 user group 9 Jan 1 2020 docs -> /srv/docs");
+    assertEquals("docs", link.name);
+    assertEquals("/srv/docs", link.link);
+    assertTrue("Link was not marked partial.", link.partial);
+
+    Stat file = parser.parseEntry(
+      "-rw-r--r-- 1 user group 4096 Jan 1 2020 notes");
+    assertEquals("notes", file.name);
+    assertEquals(4096, file.size);
+    assertFalse("File was marked partial.", file.partial);
+  }
+
   @Test(timeout = 3000)
   public void testTapAsInputStream() throws Exception {
     String expect = "This is the expected string.";
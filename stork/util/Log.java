@@ -1,20 +1,219 @@
 package stork.util;
 
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.logging.*;
 import static java.util.logging.Level.*;
 
 // A slightly more convenient logging utility.
+//
+// Messages are given as a list of objects which are only stringified and
+// joined if the message will be emitted, so callers should pass values
+// rather than concatenating them. Calls with up to three objects don't
+// allocate anything when the level is filtered out. The caller's class is
+// only looked up when some package has an override which might let the
+// message through, and the stack is only walked for the caller's method
+// once the message is going to be emitted.
+//
+// When asynchronous logging is enabled, emitted records are put in a ring
+// buffer and written by a background thread, so callers never wait on the
+// output. If the buffer fills up, records are dropped and counted, and a
+// warning is written once there is room again.
 
 public abstract class Log {
   private final static Logger log = Logger.getAnonymousLogger();
   public static boolean just_log_to_stdout_who_cares = false;
 
+  // The default level, per-package overrides, and the lowest level any of
+  // them lets through. Overrides are replaced, not modified, when changed.
+  private static volatile Level level = INFO;
+  private static volatile Map<String,Level> packages =
+    Collections.emptyMap();
+  private static volatile int threshold;
+
+  // The asynchronous appender, if enabled.
+  private static volatile Writer writer;
+
+  // Start with whatever level the logging configuration gives the root
+  // logger, and let everything through the logger itself so overrides below
+  // that level work.
+  static {
+    Level root = Logger.getLogger("").getLevel();
+    if (root != null)
+      level = root;
+    log.setLevel(ALL);
+    recompute();
+  }
+
+  /** Set the default level. */
+  public static synchronized void level(Level l) {
+    level = l;
+    recompute();
+  }
+
+  /**
+   * Set the level for classes in {@code pkg} and its subpackages, or a single
+   * class if it is a class name, overriding the default level.
+   *
+   * @param pkg the package or class name.
+   * @param l the level, or {@code null} to remove the override.
+   */
+  public static synchronized void level(String pkg, Level l) {
+    Map<String,Level> map = new HashMap<String,Level>(packages);
+    if (l == null)
+      map.remove(pkg);
+    else
+      map.put(pkg, l);
+    packages = map;
+    recompute();
+  }
+
+  // Recompute the lowest level which may be emitted, and make sure the root
+  // handlers don't filter out anything at that level.
+  private static void recompute() {
+    Level lowest = level;
+    for (Level l : packages.values()) if (l.intValue() < lowest.intValue())
+      lowest = l;
+    threshold = lowest.intValue();
+    for (Handler h : Logger.getLogger("").getHandlers())
+      if (h.getLevel().intValue() > threshold) h.setLevel(lowest);
+  }
+
+  // Get the level for a class, from the most specific override.
+  private static Level levelFor(String name) {
+    Map<String,Level> map = packages;
+    if (map.isEmpty())
+      return level;
+    for (String n = name; ; n = n.substring(0, n.lastIndexOf('.'))) {
+      Level l = map.get(n);
+      if (l != null)
+        return l;
+      if (n.lastIndexOf('.') < 0)
+        return level;
+    }
+  }
+
+  // Finds the calling class without building a stack trace.
+  private static final Callers callers = new Callers();
+  private static final class Callers extends SecurityManager {
+    Class caller() {
+      for (Class c : getClassContext())
+        if (c != Callers.class && c != Log.class) return c;
+      return null;
+    }
+  }
+
+  /** Check if anything may be emitted at level {@code l}. */
+  public static boolean enabled(Level l) {
+    return just_log_to_stdout_who_cares || l.intValue() >= threshold;
+  }
+
+  /**
+   * Enable or disable asynchronous logging. When disabling, anything already
+   * buffered is written first.
+   *
+   * @param capacity the number of records to buffer, or zero to log
+   * synchronously.
+   */
+  public static synchronized void async(int capacity) {
+    if (writer != null) {
+      writer.close();
+      writer = null;
+    } if (capacity > 0) {
+      writer = new Writer(capacity);
+    }
+  }
+
+  /** Wait for everything buffered to be written. */
+  public static void flush() {
+    Writer w = writer;
+    if (w != null) w.flush();
+  }
+
+  // Writes buffered records on a background thread.
+  private static class Writer extends Thread {
+    private final BlockingQueue<LogRecord> ring;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile boolean closed = false;
+    private final Thread hook = new Thread() {
+      public void run() { Writer.this.close(); }
+    };
+
+    Writer(int capacity) {
+      super("Log Writer");
+      ring = new ArrayBlockingQueue<LogRecord>(capacity);
+      setDaemon(true);
+      start();
+      Runtime.getRuntime().addShutdownHook(hook);
+    }
+
+    // Buffer a record, or drop it if the buffer is full.
+    void add(LogRecord lr) {
+      pending.incrementAndGet();
+      if (closed) {
+        write(lr);
+      } else if (!ring.offer(lr)) {
+        pending.decrementAndGet();
+        dropped.incrementAndGet();
+      }
+    }
+
+    public void run() {
+      while (!closed) try {
+        write(ring.take());
+      } catch (InterruptedException e) {
+        // Check if we've been closed.
+      }
+    }
+
+    private synchronized void write(LogRecord lr) {
+      long d = dropped.getAndSet(0);
+      if (d > 0)
+        log.log(WARNING, "Dropped "+d+" log messages.");
+      log.log(lr);
+      if (pending.decrementAndGet() == 0)
+        notifyAll();
+    }
+
+    // Write everything buffered on the calling thread, and wait for anything
+    // the background thread is writing.
+    synchronized void flush() {
+      for (LogRecord lr; (lr = ring.poll()) != null;)
+        write(lr);
+      while (pending.get() > 0) try {
+        wait(10);
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+
+    void close() {
+      closed = true;
+      interrupt();
+      flush();
+      try {
+        Runtime.getRuntime().removeShutdownHook(hook);
+      } catch (IllegalStateException e) {
+        // Already shutting down.
+      }
+    }
+  }
+
   // Convenience logging methods that take variadic arguments. The last
   // object can optionally be a throwable to print a stack trace.
   public static void log(Level l, Object... o) {
     if (just_log_to_stdout_who_cares) {
       System.out.println(StorkUtil.joinWith("", o));
-    } else if (log.isLoggable(l)) {
+    } else if (l.intValue() >= threshold) {
+      // Check for an override for the caller's package.
+      if (!packages.isEmpty()) {
+        Class c = callers.caller();
+        if (l.intValue() < levelFor(c == null ? "" : c.getName()).intValue())
+          return;
+      }
+
       // Get the caller.
       int i;
       StackTraceElement[] st = Thread.currentThread().getStackTrace();
@@ -38,21 +237,90 @@ public abstract class Log {
         lr.setSourceMethodName(st[i].getMethodName());
       }
 
-      log.log(lr);
+      Writer w = writer;
+      if (w != null)
+        w.add(lr);
+      else
+        log.log(lr);
     }
-  } public static void finest(Object... o) {
-    log(FINEST, o);
-  } public static void finer(Object... o) {
-    log(FINER, o);
-  } public static void fine(Object... o) {
-    log(FINE, o);
-  } public static void config(Object... o) {
-    log(CONFIG, o);
-  } public static void info(Object... o) {
-    log(INFO, o);
-  } public static void warning(Object... o) {
-    log(WARNING, o);
-  } public static void severe(Object... o) {
-    log(SEVERE, o);
+  }
+
+  // Fixed-arity versions, so filtered calls don't allocate an array.
+  public static void log(Level l, Object a) {
+    if (enabled(l)) log(l, new Object[] { a });
+  } public static void log(Level l, Object a, Object b) {
+    if (enabled(l)) log(l, new Object[] { a, b });
+  } public static void log(Level l, Object a, Object b, Object c) {
+    if (enabled(l)) log(l, new Object[] { a, b, c });
+  }
+
+  public static void finest(Object... o) {
+    if (enabled(FINEST)) log(FINEST, o);
+  } public static void finest(Object a) {
+    log(FINEST, a);
+  } public static void finest(Object a, Object b) {
+    log(FINEST, a, b);
+  } public static void finest(Object a, Object b, Object c) {
+    log(FINEST, a, b, c);
+  }
+
+  public static void finer(Object... o) {
+    if (enabled(FINER)) log(FINER, o);
+  } public static void finer(Object a) {
+    log(FINER, a);
+  } public static void finer(Object a, Object b) {
+    log(FINER, a, b);
+  } public static void finer(Object a, Object b, Object c) {
+    log(FINER, a, b, c);
+  }
+
+  public static void fine(Object... o) {
+    if (enabled(FINE)) log(FINE, o);
+  } public static void fine(Object a) {
+    log(FINE, a);
+  } public static void fine(Object a, Object b) {
+    log(FINE, a, b);
+  } public static void fine(Object a, Object b, Object c) {
+    log(FINE, a, b, c);
+  }
+
+  public static void config(Object... o) {
+    if (enabled(CONFIG)) log(CONFIG, o);
+  } public static void config(Object a) {
+    log(CONFIG, a);
+  } public static void config(Object a, Object b) {
+    log(CONFIG, a, b);
+  } public static void config(Object a, Object b, Object c) {
+    log(CONFIG, a, b, c);
+  }
+
+  public static void info(Object... o) {
+    if (enabled(INFO)) log(INFO, o);
+  } public static void info(Object a) {
+    log(INFO, a);
+  } public static void info(Object a, Object b) {
+    log(INFO, a, b);
+  } public static void info(Object a, Object b, Object c) {
+    log(INFO, a, b, c);
+  }
+
+  public static void warning(Object... o) {
+    if (enabled(WARNING)) log(WARNING, o);
+  } public static void warning(Object a) {
+    log(WARNING, a);
+  } public static void warning(Object a, Object b) {
+    log(WARNING, a, b);
+  } public static void warning(Object a, Object b, Object c) {
+    log(WARNING, a, b, c);
+  }
+
+  public static void severe(Object... o) {
+    if (enabled(SEVERE)) log(SEVERE, o);
+  } public static void severe(Object a) {
+    log(SEVERE, a);
+  } public static void severe(Object a, Object b) {
+    log(SEVERE, a, b);
+  } public static void severe(Object a, Object b, Object c) {
+    log(SEVERE, a, b, c);
   }
 }